@@ -0,0 +1,561 @@
+package org.obiba.magma.datasource.commons;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Keeps local copies of the downloaded public data files in a directory, so that they survive restarts. A cached copy
+ * is used as is during its time to live; after that it is revalidated against the server with a conditional request
+ * (ETag / Last-Modified) and downloaded again only if it has changed.
+ * <p/>
+ * A download which fails is kept as a partial file and resumed by the next one with a range request, if the server
+ * supports it and the resource has not changed in the meantime.
+ */
+public class DownloadCache {
+
+  private static final Logger log = LoggerFactory.getLogger(DownloadCache.class);
+
+  public static final File DEFAULT_DIRECTORY = new File(System.getProperty("java.io.tmpdir"),
+      "magma-public-datasources");
+
+  public static final long DEFAULT_TTL = TimeUnit.DAYS.toMillis(1);
+
+  private static final String URL_PROPERTY = "url";
+
+  private static final String ETAG_PROPERTY = "etag";
+
+  private static final String LAST_MODIFIED_PROPERTY = "lastModified";
+
+  private static final String CHECKED_PROPERTY = "checked";
+
+  private static final int LOCK_STRIPES = 64;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // progress is reported at most once per interval
+  private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+  // one copy buffer per downloading thread, reused by its downloads
+  private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BUFFER_SIZE];
+    }
+  };
+
+  private final File directory;
+
+  private final long ttl;
+
+  // one download at a time per url
+  private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+  @Nullable
+  private volatile DownloadListener listener;
+
+  public DownloadCache() {
+    this(DEFAULT_DIRECTORY, DEFAULT_TTL);
+  }
+
+  /**
+   * @param directory where the downloaded files are kept
+   * @param ttl time in milliseconds during which a cached file is used without checking the server
+   */
+  public DownloadCache(File directory, long ttl) {
+    this.directory = directory;
+    this.ttl = ttl;
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * @param listener notified of the progress of the downloads, null for none
+   */
+  public void setListener(@Nullable DownloadListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Get the local copy of the resource at the given url, downloading it if it is not cached or if it has changed.
+   *
+   * @param url
+   * @return
+   * @throws IOException if the resource cannot be downloaded and there is no cached copy
+   */
+  public File get(String url) throws IOException {
+    return get(url, null);
+  }
+
+  /**
+   * Get the local copy of the resource at the given url, like {@link #get(String)}. When the resource has to be
+   * downloaded, the handler reads it while it arrives, at the same time as it is written to the cache.
+   *
+   * @param url
+   * @param handler called only if the resource is downloaded
+   * @return
+   * @throws IOException if the resource cannot be downloaded and there is no cached copy, or if the handler fails
+   */
+  public File stream(String url, StreamHandler handler) throws IOException {
+    return get(url, handler);
+  }
+
+  private File get(String url, @Nullable StreamHandler handler) throws IOException {
+    Lock lock = locks.get(url);
+    lock.lock();
+    try {
+      File file = getFile(url);
+      Properties metadata = readMetadata(url);
+      if(file.exists() && metadata != null) {
+        long checked = Long.parseLong(metadata.getProperty(CHECKED_PROPERTY, "0"));
+        if(System.currentTimeMillis() - checked < ttl) return file;
+        try {
+          return download(url, file, metadata, handler);
+        } catch(StreamHandlerException e) {
+          throw e.getCause();
+        } catch(IOException e) {
+          log.warn("Unable to revalidate {}, using cached copy: {}", url, e.getMessage());
+          return file;
+        }
+      }
+      return download(url, file, null, handler);
+    } catch(StreamHandlerException e) {
+      throw e.getCause();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get where the resource at the given url is (or would be) cached.
+   *
+   * @param url
+   * @return
+   */
+  public File getFile(String url) {
+    String name = url.substring(url.lastIndexOf('/') + 1);
+    return new File(directory, Hashing.sha1().hashString(url, Charsets.UTF_8) + (name.isEmpty() ? "" : "-" + name));
+  }
+
+  /**
+   * Get a copy of a cached file that the next downloads of its url do not replace, for reading this version of the
+   * resource while a newer one is downloaded. The copy is named after the checksum of its content, so that a same
+   * version is copied once and found again after a restart. Files made from the copy are to be named after it.
+   *
+   * @param file a file of this cache
+   * @return
+   * @throws IOException
+   */
+  public File keep(File file) throws IOException {
+    File tmp = File.createTempFile(file.getName(), ".part", directory);
+    try {
+      // linked where supported, as the cached file is replaced by a move instead of being overwritten
+      try {
+        Files.delete(tmp.toPath());
+        Files.createLink(tmp.toPath(), file.toPath());
+      } catch(UnsupportedOperationException | IOException e) {
+        Files.copy(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      File copy = getCopy(file, SnapshotFile.checksum(tmp));
+      if(!copy.exists()) {
+        Files.move(tmp.toPath(), copy.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      }
+      return copy;
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  /**
+   * Delete the copies of a cached file, and the files made from them, but the given one: the versions left by a
+   * previous run.
+   *
+   * @param file a file of this cache
+   * @param kept
+   */
+  public void discardCopies(File file, File kept) {
+    String name = file.getName();
+    int extension = getExtensionIndex(name);
+    Pattern copies = Pattern.compile(Pattern.quote(name.substring(0, extension)) + "\\.[0-9a-f]+" +
+        Pattern.quote(name.substring(extension)) + ".*");
+    File[] files = directory.listFiles();
+    if(files == null) return;
+    for(File copy : files) {
+      if(copies.matcher(copy.getName()).matches() && !copy.getName().startsWith(kept.getName()) && !copy.delete()) {
+        log.warn("Unable to delete {}", copy.getAbsolutePath());
+      }
+    }
+  }
+
+  private File getCopy(File file, long checksum) {
+    String name = file.getName();
+    int extension = getExtensionIndex(name);
+    return new File(file.getParentFile(),
+        name.substring(0, extension) + "." + Long.toHexString(checksum) + name.substring(extension));
+  }
+
+  private static int getExtensionIndex(String name) {
+    int extension = name.lastIndexOf('.');
+    return extension == -1 ? name.length() : extension;
+  }
+
+  /**
+   * Download the resource, conditionally if there is already a cached copy, resuming the partial download if any.
+   *
+   * @param url
+   * @param file
+   * @param metadata metadata of the cached copy, null if none
+   * @param handler
+   * @return
+   * @throws IOException
+   */
+  private File download(String url, File file, @Nullable Properties metadata, @Nullable StreamHandler handler)
+      throws IOException {
+    File part = new File(file.getParentFile(), file.getName() + ".part");
+    File partMetadataFile = new File(file.getParentFile(), part.getName() + ".properties");
+    Properties partMetadata = part.exists() ? readProperties(partMetadataFile) : null;
+    String partValidator = partMetadata == null ? null : getValidator(partMetadata);
+    long offset = partValidator == null ? 0 : part.length();
+
+    URLConnection connection = new URL(url).openConnection();
+    if(metadata != null) {
+      if(metadata.containsKey(ETAG_PROPERTY)) {
+        connection.setRequestProperty("If-None-Match", metadata.getProperty(ETAG_PROPERTY));
+      }
+      if(metadata.containsKey(LAST_MODIFIED_PROPERTY)) {
+        connection.setRequestProperty("If-Modified-Since", metadata.getProperty(LAST_MODIFIED_PROPERTY));
+      }
+    }
+    if(offset > 0) {
+      // the server sends the whole resource if it has changed since the partial download
+      connection.setRequestProperty("Range", "bytes=" + offset + "-");
+      connection.setRequestProperty("If-Range", partValidator);
+    }
+
+    boolean resumable = false;
+    if(connection instanceof HttpURLConnection) {
+      int code = ((HttpURLConnection) connection).getResponseCode();
+      if(code == HttpURLConnection.HTTP_NOT_MODIFIED && metadata != null) {
+        log.debug("Not modified: {}", url);
+        writeMetadata(url, metadata);
+        return file;
+      }
+      if(code == HttpURLConnection.HTTP_OK) {
+        offset = 0;
+      } else if(code != HttpURLConnection.HTTP_PARTIAL || offset == 0) {
+        throw new IOException("Unexpected response code " + code + " for " + url);
+      }
+      resumable = code == HttpURLConnection.HTTP_PARTIAL ||
+          "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+    } else {
+      offset = 0;
+    }
+
+    Properties newMetadata = new Properties();
+    newMetadata.setProperty(URL_PROPERTY, url);
+    String etag = connection.getHeaderField("ETag");
+    if(etag != null) newMetadata.setProperty(ETAG_PROPERTY, etag);
+    String lastModified = connection.getHeaderField("Last-Modified");
+    if(lastModified != null) newMetadata.setProperty(LAST_MODIFIED_PROPERTY, lastModified);
+
+    if(offset > 0) {
+      log.info("Resume download from: {} at {} bytes ...", url, offset);
+    } else {
+      log.info("Download from: {} ...", url);
+      Files.deleteIfExists(partMetadataFile.toPath());
+    }
+    if(!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create cache directory: " + directory.getAbsolutePath());
+    }
+    // keep what is received if the download can be resumed
+    if(resumable && offset == 0 && getValidator(newMetadata) != null) {
+      writeProperties(partMetadataFile, newMetadata);
+    }
+
+    long length = connection.getContentLengthLong();
+    ProgressInputStream progress = new ProgressInputStream(connection.getInputStream(), url, offset,
+        length < 0 ? -1 : offset + length);
+    boolean completed = false;
+    // download next to the cached copy, then replace it at once
+    try(InputStream input = progress;
+        OutputStream output = new FileOutputStream(part, offset > 0)) {
+      if(handler == null) {
+        copy(input, output);
+      } else {
+        TeeInputStream tee = new TeeInputStream(input, output);
+        // the handler reads the resource from its start
+        InputStream content = offset > 0
+            ? new SequenceInputStream(ByteStreams.limit(new FileInputStream(part), offset), tee)
+            : tee;
+        try {
+          handler.handle(content);
+        } catch(IOException e) {
+          // a failure of the download while the handler reads it is not one of the handler
+          if(tee.isFailed()) throw e;
+          throw new StreamHandlerException(e);
+        } finally {
+          if(content != tee) content.close();
+        }
+        // what the handler did not read
+        copy(tee, ByteStreams.nullOutputStream());
+      }
+      completed = true;
+    } finally {
+      if(!completed && !partMetadataFile.exists()) {
+        Files.deleteIfExists(part.toPath());
+      }
+    }
+    Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Files.deleteIfExists(partMetadataFile.toPath());
+    writeMetadata(url, newMetadata);
+    progress.completed();
+
+    return file;
+  }
+
+  /**
+   * Copy with the buffer of the current thread.
+   *
+   * @param input
+   * @param output
+   * @throws IOException
+   */
+  private void copy(InputStream input, OutputStream output) throws IOException {
+    byte[] buffer = buffers.get();
+    int count;
+    while((count = input.read(buffer)) != -1) {
+      output.write(buffer, 0, count);
+    }
+  }
+
+  /**
+   * Get what identifies the version of a resource, to be checked before resuming its download.
+   *
+   * @param metadata
+   * @return null if the version cannot be identified
+   */
+  @Nullable
+  private String getValidator(Properties metadata) {
+    String etag = metadata.getProperty(ETAG_PROPERTY);
+    // weak entity tags cannot be used in range requests
+    if(etag != null && !etag.startsWith("W/")) return etag;
+    return metadata.getProperty(LAST_MODIFIED_PROPERTY);
+  }
+
+  private File getMetadataFile(String url) {
+    File file = getFile(url);
+    return new File(file.getParentFile(), file.getName() + ".properties");
+  }
+
+  @Nullable
+  private Properties readMetadata(String url) {
+    return readProperties(getMetadataFile(url));
+  }
+
+  @Nullable
+  private Properties readProperties(File metadataFile) {
+    if(!metadataFile.exists()) return null;
+    Properties metadata = new Properties();
+    try(InputStream input = new FileInputStream(metadataFile)) {
+      metadata.load(input);
+    } catch(IOException e) {
+      log.warn("Unable to read cache metadata {}: {}", metadataFile.getAbsolutePath(), e.getMessage());
+      return null;
+    }
+    return metadata;
+  }
+
+  private void writeMetadata(String url, Properties metadata) throws IOException {
+    metadata.setProperty(CHECKED_PROPERTY, Long.toString(System.currentTimeMillis()));
+    writeProperties(getMetadataFile(url), metadata);
+  }
+
+  private void writeProperties(File metadataFile, Properties metadata) throws IOException {
+    try(OutputStream output = new FileOutputStream(metadataFile)) {
+      metadata.store(output, null);
+    }
+  }
+
+  /**
+   * Reads a resource while it is downloaded.
+   */
+  public interface StreamHandler {
+
+    /**
+     * @param input the content of the resource, not to be closed
+     * @throws IOException
+     */
+    void handle(InputStream input) throws IOException;
+
+  }
+
+  /**
+   * Copies what is read to an output.
+   */
+  private static class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream output;
+
+    private boolean failed;
+
+    private TeeInputStream(InputStream input, OutputStream output) {
+      super(input);
+      this.output = output;
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        int b = super.read();
+        if(b != -1) output.write(b);
+        return b;
+      } catch(IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        int count = super.read(b, off, len);
+        if(count > 0) output.write(b, off, count);
+        return count;
+      } catch(IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    /**
+     * @return true if receiving or copying the resource failed
+     */
+    private boolean isFailed() {
+      return failed;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if(n <= 0) return 0;
+      // read what is skipped, so that it is copied
+      byte[] buffer = buffers.get();
+      int count = read(buffer, 0, (int) Math.min(n, buffer.length));
+      return Math.max(count, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // closed by the cache
+    }
+  }
+
+  /**
+   * Counts the bytes received and reports the progress to the listener.
+   */
+  private class ProgressInputStream extends FilterInputStream {
+
+    private final String url;
+
+    private final long length;
+
+    private final long start = System.currentTimeMillis();
+
+    private final long offset;
+
+    private long bytes;
+
+    private long reported = start;
+
+    private ProgressInputStream(InputStream input, String url, long offset, long length) {
+      super(input);
+      this.url = url;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if(b != -1) received(1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int count = super.read(b, off, len);
+      if(count > 0) received(count);
+      return count;
+    }
+
+    private void received(int count) {
+      bytes += count;
+      DownloadListener currentListener = listener;
+      if(currentListener == null) return;
+      long now = System.currentTimeMillis();
+      if(now - reported >= PROGRESS_INTERVAL) {
+        reported = now;
+        currentListener.onProgress(url, offset + bytes, length, bytes * 1000 / Math.max(now - start, 1));
+      }
+    }
+
+    private void completed() {
+      DownloadListener currentListener = listener;
+      if(currentListener != null) {
+        currentListener.onCompleted(url, bytes, System.currentTimeMillis() - start);
+      }
+    }
+  }
+
+  /**
+   * Distinguishes a failure of the handler from a failure of the download.
+   */
+  private static class StreamHandlerException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private StreamHandlerException(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+
+}
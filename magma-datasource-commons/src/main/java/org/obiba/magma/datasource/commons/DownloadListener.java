@@ -0,0 +1,28 @@
+package org.obiba.magma.datasource.commons;
+
+/**
+ * Follows the downloads of a {@link DownloadCache}. Several downloads may be reported at the same time, from different
+ * threads.
+ */
+public interface DownloadListener {
+
+  /**
+   * Called regularly while a resource is downloaded.
+   *
+   * @param url
+   * @param bytes bytes of the resource received so far, including those of a resumed partial download
+   * @param length length of the resource, -1 if unknown
+   * @param bytesPerSecond throughput of this download
+   */
+  void onProgress(String url, long bytes, long length, long bytesPerSecond);
+
+  /**
+   * Called once a resource is downloaded.
+   *
+   * @param url
+   * @param bytes bytes received by this download
+   * @param millis duration of this download
+   */
+  void onCompleted(String url, long bytes, long millis);
+
+}
@@ -0,0 +1,147 @@
+package org.obiba.magma.datasource.commons;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.VariableEntityBean;
+
+/**
+ * The entities of a table, held as their identifiers in the order of their ordinals, with an open-addressing hash table
+ * of the ordinals. Membership and ordinal lookups allocate nothing; entity objects are only made when the entities are
+ * iterated, and are not retained.
+ */
+public final class EntityIndex extends AbstractSet<VariableEntity> {
+
+  // empty slot
+  private static final int NONE = -1;
+
+  private final String entityType;
+
+  // ordinal / identifier
+  private final String[] identifiers;
+
+  // hash slot / ordinal, at most half full
+  private final int[] slots;
+
+  /**
+   * @param entityType
+   * @param identifiers distinct identifiers, in the order of their ordinals, not copied
+   * @throws IllegalArgumentException if an identifier is repeated
+   */
+  public EntityIndex(String entityType, String... identifiers) {
+    this.entityType = entityType;
+    this.identifiers = identifiers;
+    slots = new int[Integer.highestOneBit(Math.max(2, identifiers.length * 2 - 1)) << 1];
+    Arrays.fill(slots, NONE);
+    for(int ordinal = 0; ordinal < identifiers.length; ordinal++) {
+      int slot = slotOf(identifiers[ordinal]);
+      if(slots[slot] != NONE) {
+        throw new IllegalArgumentException("Duplicate entity identifier: " + identifiers[ordinal]);
+      }
+      slots[slot] = ordinal;
+    }
+  }
+
+  public String getEntityType() {
+    return entityType;
+  }
+
+  /**
+   * @param identifier
+   * @return the ordinal of the entity, -1 if there is no such entity
+   */
+  public int ordinalOf(@Nullable String identifier) {
+    return identifier == null ? NONE : slots[slotOf(identifier)];
+  }
+
+  /**
+   * @param entity
+   * @return the ordinal of the entity, -1 if there is no such entity
+   */
+  public int ordinalOf(@Nullable VariableEntity entity) {
+    return entity == null || !entityType.equals(entity.getType()) ? NONE : ordinalOf(entity.getIdentifier());
+  }
+
+  public String getIdentifier(int ordinal) {
+    return identifiers[ordinal];
+  }
+
+  /**
+   * @param ordinal
+   * @return a new entity object
+   */
+  public VariableEntity get(int ordinal) {
+    return new VariableEntityBean(entityType, identifiers[ordinal]);
+  }
+
+  public boolean containsIdentifier(@Nullable String identifier) {
+    return ordinalOf(identifier) != NONE;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof VariableEntity && ordinalOf((VariableEntity) o) != NONE;
+  }
+
+  @Override
+  public int size() {
+    return identifiers.length;
+  }
+
+  @Override
+  public Iterator<VariableEntity> iterator() {
+    return new Iterator<VariableEntity>() {
+
+      private int ordinal;
+
+      @Override
+      public boolean hasNext() {
+        return ordinal < identifiers.length;
+      }
+
+      @Override
+      public VariableEntity next() {
+        if(!hasNext()) throw new NoSuchElementException();
+        return get(ordinal++);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * @return estimated bytes retained on the heap, the identifiers included
+   */
+  public long getSize() {
+    long size = 16 + 4L * identifiers.length + 16 + 4L * slots.length;
+    for(String identifier : identifiers) {
+      size += MemoryCache.sizeOf(identifier);
+    }
+    return size;
+  }
+
+  /**
+   * Find the slot of an identifier by linear probing: the slot holding its ordinal, or the empty slot where it would
+   * be.
+   *
+   * @param identifier
+   * @return
+   */
+  private int slotOf(String identifier) {
+    int mask = slots.length - 1;
+    int hash = identifier.hashCode();
+    int slot = (hash ^ hash >>> 16) & mask;
+    while(slots[slot] != NONE && !identifiers[slots[slot]].equals(identifier)) {
+      slot = slot + 1 & mask;
+    }
+    return slot;
+  }
+}
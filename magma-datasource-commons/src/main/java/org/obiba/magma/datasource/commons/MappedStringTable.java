@@ -0,0 +1,369 @@
+package org.obiba.magma.datasource.commons;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * A {@link StringTable} stored off-heap: the file is memory-mapped and the values are decoded from it when read, so
+ * that large tables do not hold their strings on the heap. Rows are sorted by key (UTF-8 byte order), which allows
+ * lookups by key and ranges of keys sharing a prefix by binary search.
+ * <p/>
+ * Format: magic, format version, schema, source checksum, row and column counts, the offset of each row in key order,
+ * then the rows as written. A row is the byte length of its key and of each of its values (-1 for null), followed by
+ * their UTF-8 bytes.
+ */
+public class MappedStringTable {
+
+  private static final Logger log = LoggerFactory.getLogger(MappedStringTable.class);
+
+  private static final int MAGIC = 0x4d47534d;
+
+  private static final int VERSION = 2;
+
+  private static final int NULL_LENGTH = -1;
+
+  private static final int INT_SIZE = 4;
+
+  private final ByteBuffer buffer;
+
+  private final int rowCount;
+
+  private final int columnCount;
+
+  private final int offsetsPosition;
+
+  private final int dataPosition;
+
+  private MappedStringTable(ByteBuffer buffer) {
+    this.buffer = buffer;
+    rowCount = buffer.getInt();
+    columnCount = buffer.getInt();
+    offsetsPosition = buffer.position();
+    dataPosition = offsetsPosition + rowCount * INT_SIZE;
+  }
+
+  /**
+   * Map the table file, if it exists and was made from the source with the given checksum.
+   *
+   * @param file
+   * @param schema identifies the layout of the table, to be changed whenever the way it is parsed changes
+   * @param checksum
+   * @return null if there is no usable table file
+   */
+  @Nullable
+  public static MappedStringTable open(File file, String schema, long checksum) {
+    if(!file.exists()) return null;
+    try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // the mapping remains valid after the channel is closed
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !schema.equals(readString(buffer)) ||
+          buffer.getLong() != checksum) {
+        log.info("Table file {} is out of date", file.getAbsolutePath());
+        return null;
+      }
+      return new MappedStringTable(buffer);
+    } catch(IOException | RuntimeException e) {
+      log.warn("Unable to read table file {}: {}", file.getAbsolutePath(), e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Write the table made from the source with the given checksum, its rows being sorted by key.
+   *
+   * @param file
+   * @param schema
+   * @param checksum
+   * @param table
+   * @throws IOException
+   */
+  public static void write(File file, String schema, long checksum, StringTable table) throws IOException {
+    try(Writer writer = new Writer(file.getAbsoluteFile().getParentFile(), table.getColumnCount())) {
+      String[] values = new String[table.getColumnCount()];
+      for(int row = 0; row < table.getRowCount(); row++) {
+        for(int column = 0; column < values.length; column++) {
+          values[column] = table.getValue(row, column);
+        }
+        writer.addRow(table.getKey(row), values);
+      }
+      writer.commit(file, schema, checksum);
+    }
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public int getColumnCount() {
+    return columnCount;
+  }
+
+  public String getKey(int row) {
+    return getString(row, 0);
+  }
+
+  @Nullable
+  public String getValue(int row, int column) {
+    return getString(row, column + 1);
+  }
+
+  /**
+   * Find the row of a key.
+   *
+   * @param key
+   * @param fromRow inclusive
+   * @param toRow exclusive
+   * @return the row, or -1 if the key is not in the range
+   */
+  public int find(String key, int fromRow, int toRow) {
+    byte[] bytes = key.getBytes(Charsets.UTF_8);
+    int row = lowerBound(bytes, fromRow, toRow);
+    return row < toRow && compareKey(row, bytes) == 0 ? row : -1;
+  }
+
+  /**
+   * Find the first row which key is greater or equal to the given key.
+   *
+   * @param key
+   * @return
+   */
+  public int lowerBound(String key) {
+    return lowerBound(key.getBytes(Charsets.UTF_8), 0, rowCount);
+  }
+
+  private int lowerBound(byte[] key, int fromRow, int toRow) {
+    int low = fromRow;
+    int high = toRow;
+    while(low < high) {
+      int middle = (low + high) >>> 1;
+      if(compareKey(middle, key) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private int compareKey(int row, byte... key) {
+    int record = getRecordPosition(row);
+    int start = record + (columnCount + 1) * INT_SIZE;
+    int length = buffer.getInt(record);
+    int common = Math.min(length, key.length);
+    for(int i = 0; i < common; i++) {
+      int compared = UnsignedBytes.compare(buffer.get(start + i), key[i]);
+      if(compared != 0) return compared;
+    }
+    return length - key.length;
+  }
+
+  /**
+   * @param row
+   * @param field 0 for the key, then the columns
+   * @return
+   */
+  @Nullable
+  private String getString(int row, int field) {
+    int record = getRecordPosition(row);
+    int length = buffer.getInt(record + field * INT_SIZE);
+    if(length == NULL_LENGTH) return null;
+    int start = record + (columnCount + 1) * INT_SIZE;
+    for(int i = 0; i < field; i++) {
+      start += Math.max(buffer.getInt(record + i * INT_SIZE), 0);
+    }
+    byte[] bytes = new byte[length];
+    // absolute reads, so that concurrent readers do not share a position
+    for(int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private int getRecordPosition(int row) {
+    return dataPosition + buffer.getInt(offsetsPosition + row * INT_SIZE);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  /**
+   * Writes a table as its rows are added, without holding them on the heap: the rows are appended to a file, and only
+   * their offsets are kept to be sorted by key once all are added. When a key is added more than once, its last row is
+   * kept.
+   */
+  public static final class Writer implements Closeable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int columnCount;
+
+    private final File rowsFile;
+
+    private final DataOutputStream rows;
+
+    private int[] offsets = new int[INITIAL_CAPACITY];
+
+    private int rowCount;
+
+    /**
+     * @param directory where the rows are written until the table is committed
+     * @param columnCount
+     * @throws IOException
+     */
+    public Writer(File directory, int columnCount) throws IOException {
+      this.columnCount = columnCount;
+      rowsFile = File.createTempFile("rows", ".part", directory);
+      rows = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rowsFile)));
+    }
+
+    public void addRow(String key, String... values) throws IOException {
+      if(values.length != columnCount) {
+        throw new IllegalArgumentException("Expected " + columnCount + " values, got " + values.length);
+      }
+      if(rowCount == offsets.length) {
+        offsets = Arrays.copyOf(offsets, rowCount * 2);
+      }
+      offsets[rowCount++] = rows.size();
+
+      byte[][] fields = new byte[columnCount + 1][];
+      fields[0] = key.getBytes(Charsets.UTF_8);
+      for(int i = 0; i < columnCount; i++) {
+        fields[i + 1] = values[i] == null ? null : values[i].getBytes(Charsets.UTF_8);
+      }
+      for(byte[] field : fields) {
+        rows.writeInt(field == null ? NULL_LENGTH : field.length);
+      }
+      for(byte[] field : fields) {
+        if(field != null) rows.write(field);
+      }
+      // the size stops at Integer.MAX_VALUE instead of overflowing
+      if(rows.size() == Integer.MAX_VALUE) throw new IOException("Table too large: " + rowsFile.getAbsolutePath());
+    }
+
+    /**
+     * Sort the rows added and write the table made from the source with the given checksum.
+     *
+     * @param file
+     * @param schema
+     * @param checksum
+     * @throws IOException
+     */
+    public void commit(File file, String schema, long checksum) throws IOException {
+      rows.close();
+      File tmp = File.createTempFile(file.getName(), ".part", file.getAbsoluteFile().getParentFile());
+      try(FileChannel input = FileChannel.open(rowsFile.toPath(), StandardOpenOption.READ)) {
+        int[] sorted = sortByKey(input.map(FileChannel.MapMode.READ_ONLY, 0, input.size()));
+        try(FileOutputStream stream = new FileOutputStream(tmp)) {
+          DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+          output.writeInt(MAGIC);
+          output.writeInt(VERSION);
+          byte[] schemaBytes = schema.getBytes(Charsets.UTF_8);
+          output.writeInt(schemaBytes.length);
+          output.write(schemaBytes);
+          output.writeLong(checksum);
+          output.writeInt(sorted.length);
+          output.writeInt(columnCount);
+          for(int offset : sorted) {
+            output.writeInt(offset);
+          }
+          output.flush();
+          // the rows as they were added, the offsets being relative to them
+          long size = input.size();
+          long copied = 0;
+          while(copied < size) {
+            copied += input.transferTo(copied, size - copied, stream.getChannel());
+          }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp.toPath());
+      }
+    }
+
+    /**
+     * Delete the rows added, whether committed or not.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        rows.close();
+      } finally {
+        Files.deleteIfExists(rowsFile.toPath());
+      }
+    }
+
+    /**
+     * Merge sort the offsets of the rows by key, which keeps the rows of a same key in the order they were added, then
+     * keep the last row of each key.
+     *
+     * @param buffer the rows
+     * @return
+     */
+    private int[] sortByKey(ByteBuffer buffer) {
+      int[] sorted = Arrays.copyOf(offsets, rowCount);
+      int[] merged = new int[rowCount];
+      for(int width = 1; width < rowCount; width *= 2) {
+        for(int from = 0; from < rowCount; from += 2 * width) {
+          int middle = Math.min(from + width, rowCount);
+          int to = Math.min(from + 2 * width, rowCount);
+          int left = from;
+          int right = middle;
+          int i = from;
+          while(left < middle && right < to) {
+            merged[i++] = compareKeys(buffer, sorted[right], sorted[left]) < 0 ? sorted[right++] : sorted[left++];
+          }
+          System.arraycopy(sorted, left, merged, i, middle - left);
+          System.arraycopy(sorted, right, merged, i + middle - left, to - right);
+        }
+        int[] swapped = sorted;
+        sorted = merged;
+        merged = swapped;
+      }
+
+      int count = 0;
+      for(int i = 0; i < sorted.length; i++) {
+        if(i + 1 == sorted.length || compareKeys(buffer, sorted[i], sorted[i + 1]) != 0) {
+          sorted[count++] = sorted[i];
+        }
+      }
+      return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+    }
+
+    private int compareKeys(ByteBuffer buffer, int record1, int record2) {
+      int length1 = buffer.getInt(record1);
+      int length2 = buffer.getInt(record2);
+      int start1 = record1 + (columnCount + 1) * INT_SIZE;
+      int start2 = record2 + (columnCount + 1) * INT_SIZE;
+      int common = Math.min(length1, length2);
+      for(int i = 0; i < common; i++) {
+        int compared = UnsignedBytes.compare(buffer.get(start1 + i), buffer.get(start2 + i));
+        if(compared != 0) return compared;
+      }
+      return length1 - length2;
+    }
+  }
+
+}
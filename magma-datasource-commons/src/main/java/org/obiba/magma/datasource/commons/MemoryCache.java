@@ -0,0 +1,213 @@
+package org.obiba.magma.datasource.commons;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Heap budget shared by the tables of public datasources. The data they load (source files, postal codes of a
+ * country...) are retained until their total estimated size exceeds the budget, the least recently used being evicted
+ * first. Evicted data are loaded again, usually from their snapshot, when next read.
+ * <p/>
+ * A same instance can be given to several datasources, so that they share one budget.
+ */
+public class MemoryCache {
+
+  private static final Logger log = LoggerFactory.getLogger(MemoryCache.class);
+
+  // weights are in KB, so that large tables fit in an int
+  private static final int KB = 1024;
+
+  /**
+   * Data retained by a {@link MemoryCache}.
+   */
+  public interface Sized {
+
+    /**
+     * @return estimated bytes retained on the heap
+     */
+    long getSize();
+
+  }
+
+  private final long maximumSize;
+
+  private final Cache<Key, Sized> cache;
+
+  /**
+   * A cache that never evicts.
+   */
+  public MemoryCache() {
+    this(-1);
+  }
+
+  /**
+   * @param maximumSize estimated bytes retained at most, negative for no limit
+   */
+  public MemoryCache(long maximumSize) {
+    this.maximumSize = maximumSize;
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
+    if(maximumSize >= 0) {
+      // a single segment, so that the least recently used data are evicted whatever their table
+      builder.concurrencyLevel(1).maximumWeight(maximumSize / KB).weigher(new Weigher<Key, Sized>() {
+        @Override
+        public int weigh(Key key, Sized value) {
+          return (int) Math.min(Integer.MAX_VALUE, value.getSize() / KB + 1);
+        }
+      });
+    }
+    cache = builder.removalListener(new RemovalListener<Key, Sized>() {
+      @Override
+      public void onRemoval(RemovalNotification<Key, Sized> notification) {
+        if(notification.wasEvicted()) {
+          log.debug("Evicted {}", notification.getKey());
+        }
+      }
+    }).build();
+  }
+
+  /**
+   * @return estimated bytes retained at most, negative if there is no limit
+   */
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Get data, loading it if not retained. Concurrent readers of the same data wait for a single load.
+   *
+   * @param owner the table the data belongs to
+   * @param name
+   * @param loader
+   * @return
+   * @throws ExecutionException if the loader failed with a checked exception, unchecked ones are thrown as is
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Sized> T get(Object owner, String name, Callable<? extends T> loader) throws ExecutionException {
+    try {
+      return (T) cache.get(new Key(owner, name), loader);
+    } catch(UncheckedExecutionException e) {
+      throw (RuntimeException) e.getCause();
+    } catch(ExecutionError e) {
+      throw (Error) e.getCause();
+    }
+  }
+
+  /**
+   * @param owner
+   * @param name
+   * @return null if the data is not retained
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  public <T extends Sized> T getIfPresent(Object owner, String name) {
+    return (T) cache.getIfPresent(new Key(owner, name));
+  }
+
+  /**
+   * @param owner
+   * @param name
+   * @return true if the data is retained, without counting as a read
+   */
+  public boolean contains(Object owner, String name) {
+    return cache.asMap().containsKey(new Key(owner, name));
+  }
+
+  public void put(Object owner, String name, Sized value) {
+    cache.put(new Key(owner, name), value);
+  }
+
+  public void invalidate(Object owner, String name) {
+    cache.invalidate(new Key(owner, name));
+  }
+
+  /**
+   * Release all the data of a table, when it is disposed.
+   *
+   * @param owner
+   */
+  public void invalidateAll(Object owner) {
+    Iterator<Key> keys = cache.asMap().keySet().iterator();
+    while(keys.hasNext()) {
+      if(keys.next().owner == owner) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * @return estimated bytes retained
+   */
+  public long getSize() {
+    long size = 0;
+    for(Sized value : cache.asMap().values()) {
+      size += value.getSize();
+    }
+    return size;
+  }
+
+  /**
+   * Hit, miss, load and eviction counts since the cache was created.
+   *
+   * @return
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Estimate the bytes retained by a string that is not shared.
+   *
+   * @param value
+   * @return
+   */
+  public static long sizeOf(@Nullable String value) {
+    // object header, fields and char array header
+    return value == null ? 0 : 40 + 2L * value.length();
+  }
+
+  private static final class Key {
+
+    // tables are compared by identity
+    private final Object owner;
+
+    private final String name;
+
+    private Key(Object owner, String name) {
+      this.owner = owner;
+      this.name = name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(this == o) return true;
+      if(!(o instanceof Key)) return false;
+      Key key = (Key) o;
+      return owner == key.owner && name.equals(key.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(owner) + name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return owner + ":" + name;
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package org.obiba.magma.datasource.commons;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compact binary copy of parsed public data, saved next to the downloaded source file so that it does not need to be
+ * parsed again as long as the source file is unchanged.
+ * <p/>
+ * Format: magic, format version, schema, source checksum, then for each {@link StringTable}: name, row and column
+ * counts, the dictionary of its distinct strings and the dictionary codes of its keys and columns (-1 for null).
+ */
+public class SnapshotFile {
+
+  private static final Logger log = LoggerFactory.getLogger(SnapshotFile.class);
+
+  private static final int MAGIC = 0x4d47534e;
+
+  private static final int VERSION = 1;
+
+  private static final int NULL_CODE = -1;
+
+  private final File file;
+
+  private final String schema;
+
+  /**
+   * @param file
+   * @param schema identifies the layout of the tables, to be changed whenever the way they are parsed changes
+   */
+  public SnapshotFile(File file, String schema) {
+    this.file = file;
+    this.schema = schema;
+  }
+
+  /**
+   * Get the snapshot file to be saved next to a source file.
+   *
+   * @param source
+   * @param schema
+   * @return
+   */
+  public static SnapshotFile of(File source, String schema) {
+    return new SnapshotFile(new File(source.getParentFile(), source.getName() + ".snapshot"), schema);
+  }
+
+  /**
+   * Compute the checksum of a source file, to be saved with the snapshot.
+   *
+   * @param source
+   * @return
+   * @throws IOException
+   */
+  public static long checksum(File source) throws IOException {
+    return com.google.common.io.Files.hash(source, Hashing.crc32()).padToLong();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Read the tables, if the snapshot exists and was made from the source with the given checksum.
+   *
+   * @param checksum
+   * @return null if there is no usable snapshot
+   */
+  @Nullable
+  public List<StringTable> read(long checksum) {
+    if(!file.exists()) return null;
+    try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if(!readHeader(buffer, checksum)) return null;
+      int count = buffer.getInt();
+      ImmutableList.Builder<StringTable> tables = ImmutableList.builder();
+      for(int i = 0; i < count; i++) {
+        tables.add(readTable(buffer));
+      }
+      return tables.build();
+    } catch(IOException | RuntimeException e) {
+      log.warn("Unable to read snapshot {}: {}", file.getAbsolutePath(), e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Read one of the tables, skipping the others, if the snapshot exists and was made from the source with the given
+   * checksum.
+   *
+   * @param checksum
+   * @param name
+   * @return null if there is no usable snapshot or no such table in it
+   */
+  @Nullable
+  public StringTable read(long checksum, String name) {
+    if(!file.exists()) return null;
+    try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if(!readHeader(buffer, checksum)) return null;
+      int count = buffer.getInt();
+      for(int i = 0; i < count; i++) {
+        int position = buffer.position();
+        if(name.equals(readString(buffer))) {
+          buffer.position(position);
+          return readTable(buffer);
+        }
+        skipTable(buffer);
+      }
+      return null;
+    } catch(IOException | RuntimeException e) {
+      log.warn("Unable to read snapshot {}: {}", file.getAbsolutePath(), e.getMessage());
+      return null;
+    }
+  }
+
+  private boolean readHeader(ByteBuffer buffer, long checksum) {
+    if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !schema.equals(readString(buffer)) ||
+        buffer.getLong() != checksum) {
+      log.info("Snapshot {} is out of date", file.getAbsolutePath());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Write the tables made from the source with the given checksum.
+   *
+   * @param checksum
+   * @param tables
+   * @throws IOException
+   */
+  public void write(long checksum, Iterable<StringTable> tables) throws IOException {
+    List<StringTable> tableList = Lists.newArrayList(tables);
+    File tmp = File.createTempFile(file.getName(), ".part", file.getAbsoluteFile().getParentFile());
+    try {
+      try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        writeString(output, schema);
+        output.writeLong(checksum);
+        output.writeInt(tableList.size());
+        for(StringTable table : tableList) {
+          writeTable(output, table);
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  private void writeTable(DataOutputStream output, StringTable table) throws IOException {
+    int rows = table.getRowCount();
+    int columns = table.getColumnCount();
+
+    // dictionary encoding
+    Map<String, Integer> dictionary = Maps.newLinkedHashMap();
+    int[] keyCodes = encode(dictionary, table.getKeys());
+    int[][] columnCodes = new int[columns][];
+    for(int i = 0; i < columns; i++) {
+      columnCodes[i] = encode(dictionary, table.getColumn(i));
+    }
+
+    writeString(output, table.getName());
+    output.writeInt(rows);
+    output.writeInt(columns);
+    output.writeInt(dictionary.size());
+    for(String value : dictionary.keySet()) {
+      writeString(output, value);
+    }
+    writeCodes(output, keyCodes);
+    for(int[] codes : columnCodes) {
+      writeCodes(output, codes);
+    }
+  }
+
+  private StringTable readTable(ByteBuffer buffer) {
+    String name = readString(buffer);
+    int rows = buffer.getInt();
+    int columnCount = buffer.getInt();
+    String[] dictionary = new String[buffer.getInt()];
+    for(int i = 0; i < dictionary.length; i++) {
+      dictionary[i] = readString(buffer);
+    }
+    String[] keys = decode(buffer, dictionary, rows);
+    String[][] columns = new String[columnCount][];
+    for(int i = 0; i < columnCount; i++) {
+      columns[i] = decode(buffer, dictionary, rows);
+    }
+    return new StringTable(name, keys, columns);
+  }
+
+  /**
+   * Skip a table which name was already read.
+   *
+   * @param buffer
+   */
+  private void skipTable(ByteBuffer buffer) {
+    int rows = buffer.getInt();
+    int columnCount = buffer.getInt();
+    int dictionarySize = buffer.getInt();
+    for(int i = 0; i < dictionarySize; i++) {
+      int length = buffer.getInt();
+      buffer.position(buffer.position() + length);
+    }
+    // key and column codes
+    buffer.position(buffer.position() + (columnCount + 1) * rows * 4);
+  }
+
+  private int[] encode(Map<String, Integer> dictionary, String... values) {
+    int[] codes = new int[values.length];
+    for(int i = 0; i < values.length; i++) {
+      String value = values[i];
+      if(value == null) {
+        codes[i] = NULL_CODE;
+      } else {
+        Integer code = dictionary.get(value);
+        if(code == null) {
+          code = dictionary.size();
+          dictionary.put(value, code);
+        }
+        codes[i] = code;
+      }
+    }
+    return codes;
+  }
+
+  private String[] decode(ByteBuffer buffer, String[] dictionary, int length) {
+    String[] values = new String[length];
+    for(int i = 0; i < length; i++) {
+      int code = buffer.getInt();
+      values[i] = code == NULL_CODE ? null : dictionary[code];
+    }
+    return values;
+  }
+
+  private void writeCodes(DataOutputStream output, int... codes) throws IOException {
+    for(int code : codes) {
+      output.writeInt(code);
+    }
+  }
+
+  private void writeString(DataOutputStream output, String value) throws IOException {
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+}
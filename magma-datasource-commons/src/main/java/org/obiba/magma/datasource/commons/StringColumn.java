@@ -0,0 +1,262 @@
+package org.obiba.magma.datasource.commons;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A column of strings held on the heap. Columns with few distinct values are dictionary-encoded: each row holds the
+ * small code of its value in a shared dictionary, instead of a reference to its own string.
+ */
+public abstract class StringColumn {
+
+  private static final int BYTE_DICTIONARY_SIZE = 1 << 8;
+
+  private static final int CHAR_DICTIONARY_SIZE = 1 << 16;
+
+  // distinct values / rows ratio under which a column is worth encoding
+  private static final int CARDINALITY_RATIO = 4;
+
+  // estimated bytes
+  private static final long ARRAY_HEADER = 16;
+
+  private static final long REFERENCE = 4;
+
+  private static final long MAP_ENTRY = 48;
+
+  /**
+   * Make a column, dictionary-encoded if its measured cardinality is low.
+   *
+   * @param values
+   * @return
+   */
+  public static StringColumn of(String... values) {
+    return of(false, values);
+  }
+
+  /**
+   * Make a column, dictionary-encoded if it is known to be categorical or if its measured cardinality is low.
+   *
+   * @param categorical
+   * @param values
+   * @return
+   */
+  public static StringColumn of(boolean categorical, String... values) {
+    // the code 0 is for null
+    Map<String, Integer> dictionary = Maps.newHashMap();
+    dictionary.put(null, 0);
+    for(String value : values) {
+      if(!dictionary.containsKey(value)) {
+        if(dictionary.size() == CHAR_DICTIONARY_SIZE) return new PlainColumn(values);
+        dictionary.put(value, dictionary.size());
+      }
+    }
+    if(!categorical && dictionary.size() * CARDINALITY_RATIO > values.length) return new PlainColumn(values);
+
+    String[] entries = new String[dictionary.size()];
+    for(Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+      entries[entry.getValue()] = entry.getKey();
+    }
+    return entries.length <= BYTE_DICTIONARY_SIZE
+        ? new ByteDictionaryColumn(entries, dictionary, values)
+        : new CharDictionaryColumn(entries, dictionary, values);
+  }
+
+  public abstract int size();
+
+  @Nullable
+  public abstract String get(int row);
+
+  public abstract boolean isDictionaryEncoded();
+
+  /**
+   * Estimate the bytes retained by the column, counting once the strings it holds several times.
+   *
+   * @return
+   */
+  public abstract long getSize();
+
+  /**
+   * Get the rows having the given value.
+   *
+   * @param value
+   * @return
+   */
+  public abstract int[] rowsOf(@Nullable String value);
+
+  /**
+   * Copy the values.
+   *
+   * @return
+   */
+  public String[] toArray() {
+    String[] values = new String[size()];
+    for(int i = 0; i < values.length; i++) {
+      values[i] = get(i);
+    }
+    return values;
+  }
+
+  private static class PlainColumn extends StringColumn {
+
+    private final String[] values;
+
+    private PlainColumn(String... values) {
+      this.values = values;
+    }
+
+    @Override
+    public int size() {
+      return values.length;
+    }
+
+    @Nullable
+    @Override
+    public String get(int row) {
+      return values[row];
+    }
+
+    @Override
+    public boolean isDictionaryEncoded() {
+      return false;
+    }
+
+    @Override
+    public long getSize() {
+      long size = ARRAY_HEADER + REFERENCE * values.length;
+      Set<String> distinct = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+      for(String value : values) {
+        if(value != null && distinct.add(value)) {
+          size += MemoryCache.sizeOf(value);
+        }
+      }
+      return size;
+    }
+
+    @Override
+    public int[] rowsOf(@Nullable String value) {
+      int[] rows = new int[values.length];
+      int count = 0;
+      for(int i = 0; i < values.length; i++) {
+        if(value == null ? values[i] == null : value.equals(values[i])) {
+          rows[count++] = i;
+        }
+      }
+      return Arrays.copyOf(rows, count);
+    }
+  }
+
+  private abstract static class DictionaryColumn extends StringColumn {
+
+    private final String[] dictionary;
+
+    private final Map<String, Integer> codes;
+
+    private DictionaryColumn(String[] dictionary, Map<String, Integer> codes) {
+      this.dictionary = dictionary;
+      this.codes = codes;
+    }
+
+    protected abstract int getCode(int row);
+
+    protected abstract long getCodesSize();
+
+    @Override
+    public long getSize() {
+      long size = ARRAY_HEADER + REFERENCE * dictionary.length + getCodesSize();
+      for(String value : dictionary) {
+        // and its entry in the codes
+        size += MemoryCache.sizeOf(value) + MAP_ENTRY;
+      }
+      return size;
+    }
+
+    @Nullable
+    @Override
+    public String get(int row) {
+      return dictionary[getCode(row)];
+    }
+
+    @Override
+    public boolean isDictionaryEncoded() {
+      return true;
+    }
+
+    @Override
+    public int[] rowsOf(@Nullable String value) {
+      Integer code = codes.get(value);
+      if(code == null) return new int[0];
+      int[] rows = new int[size()];
+      int count = 0;
+      for(int i = 0; i < rows.length; i++) {
+        if(getCode(i) == code) {
+          rows[count++] = i;
+        }
+      }
+      return Arrays.copyOf(rows, count);
+    }
+  }
+
+  private static class ByteDictionaryColumn extends DictionaryColumn {
+
+    private final byte[] codes;
+
+    private ByteDictionaryColumn(String[] dictionary, Map<String, Integer> codes, String... values) {
+      super(dictionary, codes);
+      this.codes = new byte[values.length];
+      for(int i = 0; i < values.length; i++) {
+        this.codes[i] = (byte) codes.get(values[i]).intValue();
+      }
+    }
+
+    @Override
+    public int size() {
+      return codes.length;
+    }
+
+    @Override
+    protected int getCode(int row) {
+      return codes[row] & 0xFF;
+    }
+
+    @Override
+    protected long getCodesSize() {
+      return ARRAY_HEADER + codes.length;
+    }
+  }
+
+  private static class CharDictionaryColumn extends DictionaryColumn {
+
+    private final char[] codes;
+
+    private CharDictionaryColumn(String[] dictionary, Map<String, Integer> codes, String... values) {
+      super(dictionary, codes);
+      this.codes = new char[values.length];
+      for(int i = 0; i < values.length; i++) {
+        this.codes[i] = (char) codes.get(values[i]).intValue();
+      }
+    }
+
+    @Override
+    public int size() {
+      return codes.length;
+    }
+
+    @Override
+    protected int getCode(int row) {
+      return codes[row];
+    }
+
+    @Override
+    protected long getCodesSize() {
+      return ARRAY_HEADER + 2L * codes.length;
+    }
+  }
+
+}
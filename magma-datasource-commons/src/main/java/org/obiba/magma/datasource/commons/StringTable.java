@@ -0,0 +1,71 @@
+package org.obiba.magma.datasource.commons;
+
+import javax.annotation.Nullable;
+
+/**
+ * Rows of strings identified by a key, stored by column. This is the form in which parsed public data files are saved
+ * in a {@link SnapshotFile}.
+ */
+public class StringTable {
+
+  private final String name;
+
+  private final String[] keys;
+
+  // column index / row index / value
+  private final String[][] columns;
+
+  /**
+   * @param name
+   * @param keys one key per row
+   * @param columns one array per column, each with one value per row
+   */
+  public StringTable(String name, String[] keys, String[]... columns) {
+    this.name = name;
+    this.keys = keys;
+    this.columns = columns;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getRowCount() {
+    return keys.length;
+  }
+
+  public int getColumnCount() {
+    return columns.length;
+  }
+
+  public String getKey(int row) {
+    return keys[row];
+  }
+
+  public String[] getKeys() {
+    return keys;
+  }
+
+  public String[] getColumn(int column) {
+    return columns[column];
+  }
+
+  @Nullable
+  public String getValue(int row, int column) {
+    return columns[column][row];
+  }
+
+  /**
+   * Copy a row of values.
+   *
+   * @param row
+   * @return
+   */
+  public String[] getRow(int row) {
+    String[] values = new String[columns.length];
+    for(int i = 0; i < columns.length; i++) {
+      values[i] = columns[i][row];
+    }
+    return values;
+  }
+}
@@ -0,0 +1,120 @@
+package org.obiba.magma.datasource.commons;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Immutable version of the data of a table, made from one download of its public files. A table reads its current
+ * snapshot through a {@link Reference}: a refresh builds a newer snapshot off the read path and publishes it with a
+ * single atomic swap, while readers holding the previous snapshot keep reading consistent data.
+ */
+public abstract class TableSnapshot {
+
+  private final long version;
+
+  private final long lastModified;
+
+  private volatile boolean retired;
+
+  /**
+   * @param version increases with each snapshot of a table, starting at 1
+   * @param lastModified time in milliseconds of the data of the snapshot
+   */
+  protected TableSnapshot(long version, long lastModified) {
+    this.version = version;
+    this.lastModified = lastModified;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return time in milliseconds of the data of the snapshot
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * @return true if a newer snapshot was published
+   */
+  public boolean isRetired() {
+    return retired;
+  }
+
+  /**
+   * Called once a newer snapshot was published, for the snapshot to release what it retains.
+   */
+  protected void onRetire() {
+  }
+
+  private void retire() {
+    retired = true;
+    onRetire();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " v" + version;
+  }
+
+  /**
+   * The current snapshot of a table.
+   *
+   * @param <T>
+   */
+  public static class Reference<T extends TableSnapshot> {
+
+    private final AtomicReference<T> current = new AtomicReference<>();
+
+    /**
+     * @return the current snapshot, null if none was loaded yet
+     */
+    @Nullable
+    public T peek() {
+      return current.get();
+    }
+
+    /**
+     * Get the current snapshot, loading the first one if not already done. Concurrent first readers wait for a single
+     * load.
+     *
+     * @param loader
+     * @return
+     */
+    public T get(Supplier<? extends T> loader) {
+      T snapshot = current.get();
+      if(snapshot == null) {
+        synchronized(this) {
+          snapshot = current.get();
+          if(snapshot == null) {
+            snapshot = loader.get();
+            current.set(snapshot);
+          }
+        }
+      }
+      return snapshot;
+    }
+
+    /**
+     * Replace the current snapshot by a newer one, which is then read by new readers, and retire it.
+     *
+     * @param expected the snapshot the newer one was made from
+     * @param next
+     * @return false if the current snapshot is not the expected one anymore, nothing being published
+     */
+    public boolean publish(T expected, T next) {
+      if(next.getVersion() <= expected.getVersion()) {
+        throw new IllegalArgumentException("Snapshot " + next + " is not newer than " + expected);
+      }
+      if(!current.compareAndSet(expected, next)) return false;
+      TableSnapshot previous = expected;
+      previous.retire();
+      return true;
+    }
+  }
+}
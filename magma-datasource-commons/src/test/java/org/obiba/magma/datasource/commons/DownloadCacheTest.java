@@ -0,0 +1,279 @@
+package org.obiba.magma.datasource.commons;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+@SuppressWarnings("restriction")
+public class DownloadCacheTest {
+
+  private HttpServer server;
+
+  private File directory;
+
+  private volatile String content = "version 1";
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private final AtomicInteger downloads = new AtomicInteger();
+
+  private volatile String range;
+
+  // whether the connection is dropped before the whole content is sent
+  private volatile boolean dropped;
+
+  @Before
+  public void before() throws IOException {
+    directory = Files.createTempDir();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/data.zip", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String etag = "\"" + content.hashCode() + "\"";
+        range = exchange.getRequestHeaders().getFirst("Range");
+        if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          exchange.sendResponseHeaders(304, -1);
+        } else {
+          downloads.incrementAndGet();
+          byte[] bytes = content.getBytes(Charsets.UTF_8);
+          int code = 200;
+          if(range != null && etag.equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+            int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            exchange.getResponseHeaders()
+                .add("Content-Range", "bytes " + offset + "-" + (bytes.length - 1) + "/" + bytes.length);
+            bytes = Arrays.copyOfRange(bytes, offset, bytes.length);
+            code = 206;
+          }
+          exchange.getResponseHeaders().add("ETag", etag);
+          exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+          if(dropped) {
+            // chunked, so that the end of the content is missing
+            exchange.sendResponseHeaders(code, 0);
+            exchange.getResponseBody().write(bytes);
+            exchange.getResponseBody().flush();
+            throw new IOException("Connection dropped");
+          }
+          exchange.sendResponseHeaders(code, bytes.length);
+          try(OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+          }
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void after() throws IOException {
+    server.stop(0);
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void test_cached_copy_is_used_during_ttl() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 60000);
+    File file = cache.get(getUrl());
+    assertThat(Files.toString(file, Charsets.UTF_8)).isEqualTo("version 1");
+
+    content = "version 2";
+    assertThat(Files.toString(new DownloadCache(directory, 60000).get(getUrl()), Charsets.UTF_8))
+        .isEqualTo("version 1");
+    assertThat(requests.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_cached_copy_is_revalidated_after_ttl() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 0);
+    cache.get(getUrl());
+    File file = cache.get(getUrl());
+    assertThat(Files.toString(file, Charsets.UTF_8)).isEqualTo("version 1");
+    assertThat(requests.get()).isEqualTo(2);
+    assertThat(downloads.get()).isEqualTo(1);
+
+    content = "version 2";
+    file = cache.get(getUrl());
+    assertThat(Files.toString(file, Charsets.UTF_8)).isEqualTo("version 2");
+    assertThat(downloads.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void test_cached_copy_is_used_when_server_is_down() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 0);
+    String url = getUrl();
+    cache.get(url);
+    server.stop(0);
+    assertThat(Files.toString(cache.get(url), Charsets.UTF_8)).isEqualTo("version 1");
+  }
+
+  @Test
+  public void test_stream_while_downloading() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 60000);
+    final StringBuilder streamed = new StringBuilder();
+    DownloadCache.StreamHandler handler = new DownloadCache.StreamHandler() {
+      @Override
+      public void handle(InputStream input) throws IOException {
+        // partial read: the rest is still cached
+        streamed.append(new String(ByteStreams.toByteArray(ByteStreams.limit(input, 7)), Charsets.UTF_8));
+      }
+    };
+    File file = cache.stream(getUrl(), handler);
+    assertThat(streamed.toString()).isEqualTo("version");
+    assertThat(Files.toString(file, Charsets.UTF_8)).isEqualTo("version 1");
+
+    // cached copy is not streamed
+    streamed.setLength(0);
+    cache.stream(getUrl(), handler);
+    assertThat(streamed.toString()).isEmpty();
+    assertThat(downloads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_cached_copy_is_used_when_stream_is_dropped() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 0);
+    String url = getUrl();
+    cache.get(url);
+
+    content = "version 2";
+    dropped = true;
+    File file = cache.stream(url, new DownloadCache.StreamHandler() {
+      @Override
+      public void handle(InputStream input) throws IOException {
+        ByteStreams.toByteArray(input);
+      }
+    });
+    assertThat(Files.toString(file, Charsets.UTF_8)).isEqualTo("version 1");
+  }
+
+  @Test
+  public void test_handler_failure_is_thrown() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 0);
+    String url = getUrl();
+    cache.get(url);
+
+    content = "version 2";
+    try {
+      cache.stream(url, new DownloadCache.StreamHandler() {
+        @Override
+        public void handle(InputStream input) throws IOException {
+          throw new IOException("Unable to parse");
+        }
+      });
+      fail("Handler failure not thrown");
+    } catch(IOException e) {
+      assertThat(e.getMessage()).isEqualTo("Unable to parse");
+    }
+  }
+
+  @Test
+  public void test_kept_copy_is_not_replaced() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 0);
+    String url = getUrl();
+    File kept = cache.keep(cache.get(url));
+    assertThat(cache.keep(cache.get(url))).isEqualTo(kept);
+    File snapshot = new File(directory, kept.getName() + ".snapshot");
+    Files.write("snapshot", snapshot, Charsets.UTF_8);
+
+    content = "version 2";
+    File newer = cache.keep(cache.get(url));
+    assertThat(newer).isNotEqualTo(kept);
+    // named after the checksum of its content
+    assertThat(newer.getName()).startsWith(cache.getFile(url).getName().replace(".zip", ".")).endsWith(".zip");
+    assertThat(Files.toString(kept, Charsets.UTF_8)).isEqualTo("version 1");
+    assertThat(Files.toString(newer, Charsets.UTF_8)).isEqualTo("version 2");
+
+    // the copies of the other versions and their files are discarded
+    cache.discardCopies(cache.getFile(url), newer);
+    assertThat(kept.exists()).isFalse();
+    assertThat(snapshot.exists()).isFalse();
+    assertThat(newer.exists()).isTrue();
+    assertThat(cache.getFile(url).exists()).isTrue();
+  }
+
+  @Test
+  public void test_partial_download_is_resumed() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 60000);
+    String url = getUrl();
+    writePart(cache, url, "versi", "\"" + content.hashCode() + "\"");
+
+    final StringBuilder streamed = new StringBuilder();
+    File file = cache.stream(url, new DownloadCache.StreamHandler() {
+      @Override
+      public void handle(InputStream input) throws IOException {
+        streamed.append(new String(ByteStreams.toByteArray(input), Charsets.UTF_8));
+      }
+    });
+    assertThat(range).isEqualTo("bytes=5-");
+    assertThat(streamed.toString()).isEqualTo("version 1");
+    assertThat(Files.toString(file, Charsets.UTF_8)).isEqualTo("version 1");
+    assertThat(new File(directory, file.getName() + ".part").exists()).isFalse();
+  }
+
+  @Test
+  public void test_partial_download_of_changed_resource_is_restarted() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 60000);
+    String url = getUrl();
+    writePart(cache, url, "old v", "\"old\"");
+
+    File file = cache.get(url);
+    assertThat(range).isEqualTo("bytes=5-");
+    assertThat(Files.toString(file, Charsets.UTF_8)).isEqualTo("version 1");
+  }
+
+  @Test
+  public void test_listener_is_notified() throws IOException {
+    DownloadCache cache = new DownloadCache(directory, 60000);
+    final AtomicLong completed = new AtomicLong();
+    cache.setListener(new DownloadListener() {
+      @Override
+      public void onProgress(String url, long bytes, long length, long bytesPerSecond) {
+      }
+
+      @Override
+      public void onCompleted(String url, long bytes, long millis) {
+        completed.addAndGet(bytes);
+      }
+    });
+    cache.get(getUrl());
+    assertThat(completed.get()).isEqualTo(9);
+  }
+
+  private void writePart(DownloadCache cache, String url, String content, String etag) throws IOException {
+    directory.mkdirs();
+    File file = cache.getFile(url);
+    Files.write(content, new File(directory, file.getName() + ".part"), Charsets.UTF_8);
+    Properties metadata = new Properties();
+    metadata.setProperty("etag", etag);
+    try(OutputStream output = new FileOutputStream(new File(directory, file.getName() + ".part.properties"))) {
+      metadata.store(output, null);
+    }
+  }
+
+  private String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/data.zip";
+  }
+
+}
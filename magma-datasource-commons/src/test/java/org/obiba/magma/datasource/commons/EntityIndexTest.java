@@ -0,0 +1,65 @@
+package org.obiba.magma.datasource.commons;
+
+import org.junit.Test;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.VariableEntityBean;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class EntityIndexTest {
+
+  private static final String TYPE = "Drug";
+
+  @Test
+  public void test_ordinals() {
+    EntityIndex index = new EntityIndex(TYPE, "b", "a", "c");
+
+    assertThat(index.ordinalOf("b")).isEqualTo(0);
+    assertThat(index.ordinalOf("a")).isEqualTo(1);
+    assertThat(index.ordinalOf("c")).isEqualTo(2);
+    assertThat(index.ordinalOf("d")).isEqualTo(-1);
+    assertThat(index.ordinalOf((String) null)).isEqualTo(-1);
+    assertThat(index.ordinalOf(new VariableEntityBean(TYPE, "c"))).isEqualTo(2);
+    assertThat(index.ordinalOf(new VariableEntityBean("Other", "c"))).isEqualTo(-1);
+    assertThat(index.getIdentifier(1)).isEqualTo("a");
+    assertThat(index.get(1)).isEqualTo(new VariableEntityBean(TYPE, "a"));
+  }
+
+  @Test
+  public void test_set_view() {
+    EntityIndex index = new EntityIndex(TYPE, "b", "a", "c");
+    ImmutableSet<VariableEntity> expected = ImmutableSet.<VariableEntity>of(new VariableEntityBean(TYPE, "b"),
+        new VariableEntityBean(TYPE, "a"), new VariableEntityBean(TYPE, "c"));
+
+    assertThat(index).hasSize(3);
+    assertThat(index.contains(new VariableEntityBean(TYPE, "a"))).isTrue();
+    assertThat(index.contains("a")).isFalse();
+    assertThat(index.containsIdentifier("a")).isTrue();
+    // in the order of the ordinals
+    assertThat(Lists.newArrayList(index)).isEqualTo(expected.asList());
+    assertThat(index.equals(expected)).isTrue();
+    assertThat(index.hashCode()).isEqualTo(expected.hashCode());
+  }
+
+  @Test
+  public void test_many_entities() {
+    String[] identifiers = new String[10000];
+    for(int i = 0; i < identifiers.length; i++) {
+      identifiers[i] = "CA-" + i;
+    }
+    EntityIndex index = new EntityIndex(TYPE, identifiers);
+    for(int i = 0; i < identifiers.length; i++) {
+      assertThat(index.ordinalOf("CA-" + i)).isEqualTo(i);
+    }
+    assertThat(index.ordinalOf("CA-" + identifiers.length)).isEqualTo(-1);
+    assertThat(new EntityIndex(TYPE)).isEmpty();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_duplicate_identifiers() {
+    new EntityIndex(TYPE, "a", "b", "a");
+  }
+}
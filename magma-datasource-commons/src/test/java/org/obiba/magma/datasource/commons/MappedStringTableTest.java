@@ -0,0 +1,102 @@
+package org.obiba.magma.datasource.commons;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class MappedStringTableTest {
+
+  private File directory;
+
+  @Before
+  public void before() {
+    directory = Files.createTempDir();
+  }
+
+  @After
+  public void after() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void test_rows_are_sorted_by_key() throws IOException {
+    MappedStringTable table = write();
+    assertThat(table.getRowCount()).isEqualTo(4);
+    assertThat(table.getColumnCount()).isEqualTo(2);
+    assertThat(table.getKey(0)).isEqualTo("CA-H2W");
+    assertThat(table.getKey(3)).isEqualTo("FR-75001");
+    assertThat(table.getValue(0, 0)).isEqualTo("Montréal");
+    assertThat(table.getValue(0, 1)).isEqualTo("Quebec");
+    assertThat(table.getValue(3, 1)).isNull();
+  }
+
+  @Test
+  public void test_find() throws IOException {
+    MappedStringTable table = write();
+    assertThat(table.find("CA-T2P", 0, table.getRowCount())).isEqualTo(2);
+    assertThat(table.find("CA-T2P", 0, 2)).isEqualTo(-1);
+    assertThat(table.find("CA-X", 0, table.getRowCount())).isEqualTo(-1);
+    assertThat(table.lowerBound("CA-")).isEqualTo(0);
+    assertThat(table.lowerBound("CA.")).isEqualTo(3);
+    assertThat(table.lowerBound("US-")).isEqualTo(4);
+  }
+
+  @Test
+  public void test_outdated_table_is_not_opened() throws IOException {
+    write();
+    assertThat(MappedStringTable.open(new File(directory, "test.table"), "test-1", 2L)).isNull();
+  }
+
+  @Test
+  public void test_rows_are_streamed_and_last_row_of_a_key_is_kept() throws IOException {
+    File file = new File(directory, "test.table");
+    try(MappedStringTable.Writer writer = new MappedStringTable.Writer(directory, 1)) {
+      // more rows than a merge pass, in reverse order
+      for(int i = 999; i >= 0; i--) {
+        writer.addRow(String.format("K%04d", i), "first " + i);
+      }
+      writer.addRow("K0500", "last");
+      writer.addRow("K0001", (String) null);
+      writer.commit(file, "test-1", 1L);
+    }
+    // only the table is left
+    assertThat(directory.list()).containsOnly("test.table");
+
+    MappedStringTable table = MappedStringTable.open(file, "test-1", 1L);
+    assertThat(table).isNotNull();
+    assertThat(table.getRowCount()).isEqualTo(1000);
+    for(int i = 0; i < 1000; i++) {
+      assertThat(table.getKey(i)).isEqualTo(String.format("K%04d", i));
+    }
+    assertThat(table.getValue(0, 0)).isEqualTo("first 0");
+    assertThat(table.getValue(1, 0)).isNull();
+    assertThat(table.getValue(500, 0)).isEqualTo("last");
+    assertThat(table.getValue(999, 0)).isEqualTo("first 999");
+  }
+
+  @Test
+  public void test_uncommitted_rows_are_deleted() throws IOException {
+    try(MappedStringTable.Writer writer = new MappedStringTable.Writer(directory, 1)) {
+      writer.addRow("A", "a");
+    }
+    assertThat(directory.list()).isEmpty();
+  }
+
+  private MappedStringTable write() throws IOException {
+    File file = new File(directory, "test.table");
+    MappedStringTable.write(file, "test-1", 1L,
+        new StringTable("test", new String[] { "FR-75001", "CA-T2P", "CA-H2W", "CA-K1A" },
+            new String[] { "Paris", "Calgary", "Montréal", "Ottawa" },
+            new String[] { null, "Alberta", "Quebec", "Ontario" }));
+    return MappedStringTable.open(file, "test-1", 1L);
+  }
+
+}
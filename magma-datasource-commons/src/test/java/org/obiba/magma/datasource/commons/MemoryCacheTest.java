@@ -0,0 +1,117 @@
+package org.obiba.magma.datasource.commons;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class MemoryCacheTest {
+
+  private static final long KB = 1024;
+
+  @Test
+  public void test_data_is_loaded_once() throws ExecutionException {
+    MemoryCache cache = new MemoryCache();
+    Object table = new Object();
+    Loader loader = new Loader(10 * KB);
+
+    Data data = cache.get(table, "file", loader);
+    assertThat(cache.<Data>get(table, "file", loader)).isSameAs(data);
+    assertThat(loader.count.get()).isEqualTo(1);
+    assertThat(cache.getStats().hitCount()).isEqualTo(1);
+    assertThat(cache.getStats().missCount()).isEqualTo(1);
+    assertThat(cache.getSize()).isEqualTo(10 * KB);
+  }
+
+  @Test
+  public void test_least_recently_used_data_is_evicted() throws ExecutionException {
+    MemoryCache cache = new MemoryCache(100 * KB);
+    Object table = new Object();
+    Loader loader = new Loader(40 * KB);
+
+    cache.get(table, "first", loader);
+    cache.get(table, "second", loader);
+    cache.get(table, "first", loader);
+    cache.get(table, "third", loader);
+
+    assertThat(cache.<Data>getIfPresent(table, "first")).isNotNull();
+    assertThat(cache.<Data>getIfPresent(table, "second")).isNull();
+    assertThat(cache.<Data>getIfPresent(table, "third")).isNotNull();
+    assertThat(cache.getStats().evictionCount()).isEqualTo(1);
+
+    // loaded again
+    cache.get(table, "second", loader);
+    assertThat(loader.count.get()).isEqualTo(4);
+  }
+
+  @Test
+  public void test_data_of_a_table_is_invalidated() throws ExecutionException {
+    MemoryCache cache = new MemoryCache();
+    Object table = new Object();
+    Object otherTable = new Object();
+    Loader loader = new Loader(KB);
+
+    cache.get(table, "first", loader);
+    cache.get(table, "second", loader);
+    cache.get(otherTable, "first", loader);
+    cache.invalidateAll(table);
+
+    assertThat(cache.<Data>getIfPresent(table, "first")).isNull();
+    assertThat(cache.<Data>getIfPresent(table, "second")).isNull();
+    assertThat(cache.<Data>getIfPresent(otherTable, "first")).isNotNull();
+  }
+
+  @Test
+  public void test_load_failure_is_not_retained() throws ExecutionException {
+    MemoryCache cache = new MemoryCache();
+    Object table = new Object();
+    try {
+      cache.get(table, "file", new Callable<Data>() {
+        @Override
+        public Data call() throws Exception {
+          throw new IOException("unavailable");
+        }
+      });
+      fail("Expected ExecutionException");
+    } catch(ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IOException.class);
+    }
+    assertThat(cache.<Data>get(table, "file", new Loader(KB))).isNotNull();
+  }
+
+  private static class Data implements MemoryCache.Sized {
+
+    private final long size;
+
+    private Data(long size) {
+      this.size = size;
+    }
+
+    @Override
+    public long getSize() {
+      return size;
+    }
+  }
+
+  private static class Loader implements Callable<Data> {
+
+    private final long size;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private Loader(long size) {
+      this.size = size;
+    }
+
+    @Override
+    public Data call() throws Exception {
+      count.incrementAndGet();
+      return new Data(size);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package org.obiba.magma.datasource.commons;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SnapshotFileTest {
+
+  private File directory;
+
+  @Before
+  public void before() {
+    directory = Files.createTempDir();
+  }
+
+  @After
+  public void after() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void test_write_and_read() throws IOException {
+    SnapshotFile snapshotFile = new SnapshotFile(new File(directory, "test.snapshot"), "test-1");
+    snapshotFile.write(123L, ImmutableList.of(new StringTable("table", new String[] { "A", "B", "C" },
+        new String[] { "Québec", "Ontario", "Québec" }, new String[] { null, "A", "" })));
+
+    List<StringTable> tables = snapshotFile.read(123L);
+    assertThat(tables).hasSize(1);
+    StringTable table = tables.get(0);
+    assertThat(table.getName()).isEqualTo("table");
+    assertThat(table.getKeys()).containsExactly("A", "B", "C");
+    assertThat(table.getColumn(0)).containsExactly("Québec", "Ontario", "Québec");
+    assertThat(table.getRow(1)).containsExactly("Ontario", "A");
+    assertThat(table.getValue(0, 1)).isNull();
+    assertThat(table.getValue(2, 1)).isEmpty();
+    // dictionary encoded
+    assertThat(table.getValue(0, 0)).isSameAs(table.getValue(2, 0));
+  }
+
+  @Test
+  public void test_read_one_table() throws IOException {
+    SnapshotFile snapshotFile = new SnapshotFile(new File(directory, "test.snapshot"), "test-1");
+    snapshotFile.write(123L, ImmutableList.of(
+        new StringTable("first", new String[] { "A", "B" }, new String[] { "Québec", null }),
+        new StringTable("second", new String[] { "C" }, new String[] { "Ontario" }, new String[] { "Toronto" })));
+
+    StringTable table = snapshotFile.read(123L, "second");
+    assertThat(table.getName()).isEqualTo("second");
+    assertThat(table.getKeys()).containsExactly("C");
+    assertThat(table.getRow(0)).containsExactly("Ontario", "Toronto");
+    assertThat(snapshotFile.read(123L, "first").getColumn(0)).containsExactly("Québec", null);
+    assertThat(snapshotFile.read(123L, "none")).isNull();
+    assertThat(snapshotFile.read(456L, "second")).isNull();
+  }
+
+  @Test
+  public void test_outdated_snapshot_is_not_read() throws IOException {
+    File file = new File(directory, "test.snapshot");
+    new SnapshotFile(file, "test-1").write(123L, ImmutableList.of(new StringTable("table", new String[] { "A" })));
+
+    assertThat(new SnapshotFile(file, "test-1").read(456L)).isNull();
+    assertThat(new SnapshotFile(file, "test-2").read(123L)).isNull();
+    assertThat(new SnapshotFile(new File(directory, "none.snapshot"), "test-1").read(123L)).isNull();
+  }
+
+}
@@ -0,0 +1,51 @@
+package org.obiba.magma.datasource.commons;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class StringColumnTest {
+
+  @Test
+  public void test_low_cardinality_column_is_encoded() {
+    StringColumn column = StringColumn
+        .of("Québec", "Ontario", "Québec", null, "Québec", "Ontario", "Québec", "Québec", "Ontario", "Québec", "Québec",
+            "Québec");
+    assertThat(column.isDictionaryEncoded()).isTrue();
+    assertThat(column.size()).isEqualTo(12);
+    assertThat(column.get(0)).isEqualTo("Québec");
+    assertThat(column.get(1)).isEqualTo("Ontario");
+    assertThat(column.get(3)).isNull();
+    assertThat(column.rowsOf("Ontario")).containsOnly(1, 5, 8);
+    assertThat(column.rowsOf(null)).containsOnly(3);
+    assertThat(column.rowsOf("Manitoba")).isEmpty();
+  }
+
+  @Test
+  public void test_high_cardinality_column_is_not_encoded() {
+    StringColumn column = StringColumn.of("A", "B", "C", "D");
+    assertThat(column.isDictionaryEncoded()).isFalse();
+    assertThat(column.toArray()).containsOnly("A", "B", "C", "D");
+    assertThat(column.rowsOf("C")).containsOnly(2);
+  }
+
+  @Test
+  public void test_categorical_column_is_encoded() {
+    StringColumn column = StringColumn.of(true, "Y", "N", null);
+    assertThat(column.isDictionaryEncoded()).isTrue();
+    assertThat(column.toArray()).isEqualTo(new String[] { "Y", "N", null });
+  }
+
+  @Test
+  public void test_large_dictionary() {
+    String[] values = new String[4000];
+    for(int i = 0; i < values.length; i++) {
+      values[i] = "value" + i % 500;
+    }
+    StringColumn column = StringColumn.of(values);
+    assertThat(column.isDictionaryEncoded()).isTrue();
+    assertThat(column.toArray()).isEqualTo(values);
+    assertThat(column.rowsOf("value499")).hasSize(8);
+  }
+
+}
@@ -0,0 +1,71 @@
+package org.obiba.magma.datasource.commons;
+
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TableSnapshotTest {
+
+  @Test
+  public void test_first_snapshot_is_loaded_once() {
+    TableSnapshot.Reference<Data> reference = new TableSnapshot.Reference<>();
+    Loader loader = new Loader();
+
+    assertThat(reference.peek()).isNull();
+    Data first = reference.get(loader);
+    assertThat(reference.get(loader)).isSameAs(first);
+    assertThat(reference.peek()).isSameAs(first);
+    assertThat(loader.count).isEqualTo(1);
+  }
+
+  @Test
+  public void test_newer_snapshot_is_published() {
+    TableSnapshot.Reference<Data> reference = new TableSnapshot.Reference<>();
+    Data first = reference.get(new Loader());
+    Data second = new Data(2);
+
+    assertThat(reference.publish(first, second)).isTrue();
+    assertThat(reference.peek()).isSameAs(second);
+    assertThat(first.isRetired()).isTrue();
+    assertThat(first.released).isTrue();
+    assertThat(second.isRetired()).isFalse();
+
+    // made from a snapshot that is not the current one anymore
+    assertThat(reference.publish(first, new Data(3))).isFalse();
+    assertThat(reference.peek()).isSameAs(second);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_older_snapshot_is_not_published() {
+    TableSnapshot.Reference<Data> reference = new TableSnapshot.Reference<>();
+    Data first = reference.get(new Loader());
+    reference.publish(first, new Data(1));
+  }
+
+  private static class Data extends TableSnapshot {
+
+    private boolean released;
+
+    private Data(long version) {
+      super(version, System.currentTimeMillis());
+    }
+
+    @Override
+    protected void onRetire() {
+      released = true;
+    }
+  }
+
+  private static class Loader implements Supplier<Data> {
+
+    private int count;
+
+    @Override
+    public Data get() {
+      count++;
+      return new Data(1);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package org.obiba.magma.datasource.geonames;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MappedStringTable;
+import org.obiba.magma.datasource.commons.SnapshotFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+import au.com.bytecode.opencsv.CSVReader;
+import de.schlichtherle.io.File;
+import de.schlichtherle.io.FileInputStream;
+
+/**
+ * The GeoNames postal codes of all the countries, stored off-heap in a memory-mapped table made once from
+ * allCountries.zip. The postal codes of each country are a contiguous range of it, as the rows are sorted by
+ * identifier and the identifiers start with the country code.
+ */
+class GNAllCountries {
+
+  private static final Logger log = LoggerFactory.getLogger(GNAllCountries.class);
+
+  static final String TABLE_NAME = "allCountries";
+
+  private static final String ENTRY_NAME = TABLE_NAME + ".txt";
+
+  private static final String SCHEMA = "geonames-postalcodes-1";
+
+  private final DownloadCache downloadCache;
+
+  private final String postalCodesUrl;
+
+  private volatile MappedStringTable table;
+
+  // time of allCountries.txt
+  private long lastModified;
+
+  /**
+   * @param downloadCache where allCountries.zip is downloaded
+   * @param postalCodesUrl the GeoNames index, where allCountries.zip is downloaded from
+   */
+  GNAllCountries(DownloadCache downloadCache, String postalCodesUrl) {
+    this.downloadCache = downloadCache;
+    this.postalCodesUrl = postalCodesUrl;
+  }
+
+  /**
+   * Get the postal codes of all the countries.
+   *
+   * @return
+   */
+  GNPostalCodes getPostalCodes() {
+    MappedStringTable mapped = getTable();
+    return new GNPostalCodesMappedView(mapped, 0, mapped.getRowCount());
+  }
+
+  /**
+   * Get the postal codes of a country.
+   *
+   * @param country
+   * @return
+   */
+  GNPostalCodes getPostalCodes(String country) {
+    MappedStringTable mapped = getTable();
+    // identifiers are the country code, '-' and the postal code
+    return new GNPostalCodesMappedView(mapped, mapped.lowerBound(country + "-"), mapped.lowerBound(country + "."));
+  }
+
+  /**
+   * Get the time of the postal codes of all the countries, downloading them if not already done.
+   *
+   * @return time in milliseconds
+   */
+  long getLastModified() {
+    getTable();
+    return lastModified;
+  }
+
+  /**
+   * Download and map allCountries.zip once, concurrent first readers waiting for it.
+   *
+   * @return
+   */
+  private MappedStringTable getTable() {
+    MappedStringTable result = table;
+    if(result == null) {
+      synchronized(this) {
+        result = table;
+        if(result == null) {
+          table = result = load();
+        }
+      }
+    }
+    return result;
+  }
+
+  private MappedStringTable load() {
+    String url = postalCodesUrl + TABLE_NAME + ".zip";
+    RowsWriter rowsWriter = new RowsWriter(downloadCache.getFile(url).getParentFile());
+    try {
+      java.io.File zip = downloadCache.stream(url, rowsWriter);
+      File entry = new File(new File(zip), ENTRY_NAME);
+      lastModified = entry.lastModified();
+
+      java.io.File mappedFile = new java.io.File(zip.getParentFile(), zip.getName() + ".table");
+      long checksum = SnapshotFile.checksum(zip);
+      // written while downloaded, unless the cached copy was up to date
+      MappedStringTable mapped = rowsWriter.isCompleted() ? null : MappedStringTable.open(mappedFile, SCHEMA, checksum);
+      if(mapped == null) {
+        log.info("Indexing GeoNames postal codes of all countries ...");
+        if(!rowsWriter.isCompleted()) {
+          try(CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(entry), Charsets.UTF_8),
+              '\t')) {
+            rowsWriter.write(reader);
+          }
+        }
+        rowsWriter.commit(mappedFile, checksum);
+        mapped = MappedStringTable.open(mappedFile, SCHEMA, checksum);
+        if(mapped == null) throw new IOException("Unable to map " + mappedFile.getAbsolutePath());
+      }
+      return mapped;
+    } catch(IOException e) {
+      throw new MagmaRuntimeException("Unable to read GeoNames file: " + ENTRY_NAME, e);
+    } finally {
+      rowsWriter.close();
+    }
+  }
+
+  /**
+   * Writes the rows of allCountries.txt to a table file as they are read, while allCountries.zip is downloaded or from
+   * the cached copy.
+   */
+  private static final class RowsWriter implements DownloadCache.StreamHandler {
+
+    private final java.io.File directory;
+
+    @Nullable
+    private MappedStringTable.Writer writer;
+
+    private boolean completed;
+
+    private RowsWriter(java.io.File directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    public void handle(InputStream input) throws IOException {
+      write(GNZipEntryParser.openEntry(input, ENTRY_NAME));
+    }
+
+    private void write(CSVReader reader) throws IOException {
+      // rows of a download that failed while they were read
+      close();
+      writer = new MappedStringTable.Writer(directory, GNPostalCodesValueTable.COLUMN_COUNT);
+      GNPostalCodesValueTable.write(reader, writer);
+      completed = true;
+    }
+
+    /**
+     * @return whether all the rows were read
+     */
+    private boolean isCompleted() {
+      return completed;
+    }
+
+    private void commit(java.io.File file, long checksum) throws IOException {
+      if(writer == null || !completed) throw new IllegalStateException("Rows not written");
+      writer.commit(file, SCHEMA, checksum);
+    }
+
+    private void close() {
+      completed = false;
+      if(writer == null) return;
+      try {
+        writer.close();
+      } catch(IOException e) {
+        log.warn("Unable to delete rows of {}: {}", TABLE_NAME, e.getMessage());
+      }
+      writer = null;
+    }
+  }
+
+}
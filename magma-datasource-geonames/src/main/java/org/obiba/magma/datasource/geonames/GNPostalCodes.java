@@ -0,0 +1,53 @@
+package org.obiba.magma.datasource.geonames;
+
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.datasource.commons.MemoryCache;
+
+/**
+ * Loaded postal codes, read by the tables. Implementations are immutable, so that they can be safely shared by
+ * concurrent readers once published.
+ */
+interface GNPostalCodes extends MemoryCache.Sized {
+
+  Set<VariableEntity> getEntities();
+
+  /**
+   * @param index
+   * @param entity
+   * @return null if there is no such entity
+   */
+  @Nullable
+  String getColumnValue(int index, VariableEntity entity);
+
+  /**
+   * The ordinals of the entities do not change when the same postal codes are loaded again.
+   *
+   * @param entity
+   * @return the ordinal of the entity, -1 if there is no such entity
+   */
+  int ordinalOf(VariableEntity entity);
+
+  /**
+   * @param index
+   * @param row ordinal of the entity
+   * @return
+   */
+  @Nullable
+  String getColumnValue(int index, int row);
+
+  /**
+   * @return the spatial index of the coordinates, which rows are the ordinals of the entities
+   */
+  GNSpatialIndex getSpatialIndex();
+
+  /**
+   * @param row ordinal of the entity
+   * @return
+   */
+  VariableEntity getEntity(int row);
+
+}
@@ -0,0 +1,87 @@
+package org.obiba.magma.datasource.geonames;
+
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.datasource.commons.EntityIndex;
+import org.obiba.magma.datasource.commons.StringColumn;
+
+/**
+ * The postal codes of a country loaded on the heap: one column per field, in the order of the entities. Fields with few
+ * distinct values, like the state or the province names, are dictionary-encoded. The coordinates are indexed at load
+ * time.
+ */
+final class GNPostalCodesColumns implements GNPostalCodes {
+
+  // entity / ordinal in columns
+  private final EntityIndex entities;
+
+  private final StringColumn[] columns;
+
+  private final GNSpatialIndex spatialIndex;
+
+  // estimated bytes
+  private final long size;
+
+  /**
+   * @param identifiers postal code identifiers, in the order of the columns
+   * @param columns
+   */
+  GNPostalCodesColumns(String[] identifiers, String[][] columns) {
+    entities = new EntityIndex(GNPostalCodesValueTable.ENTITY_TYPE, identifiers);
+    this.columns = new StringColumn[columns.length];
+    for(int i = 0; i < columns.length; i++) {
+      this.columns[i] = StringColumn.of(columns[i]);
+    }
+    spatialIndex = new GNSpatialIndex(columns[GNPostalCodesValueTable.COORDINATE_COLUMN]);
+    size = estimateSize();
+  }
+
+  @Override
+  public Set<VariableEntity> getEntities() {
+    return entities;
+  }
+
+  @Nullable
+  @Override
+  public String getColumnValue(int index, VariableEntity entity) {
+    int ordinal = entities.ordinalOf(entity);
+    return ordinal == -1 ? null : columns[index].get(ordinal);
+  }
+
+  @Override
+  public int ordinalOf(VariableEntity entity) {
+    return entities.ordinalOf(entity);
+  }
+
+  @Nullable
+  @Override
+  public String getColumnValue(int index, int row) {
+    return columns[index].get(row);
+  }
+
+  @Override
+  public GNSpatialIndex getSpatialIndex() {
+    return spatialIndex;
+  }
+
+  @Override
+  public VariableEntity getEntity(int row) {
+    return entities.get(row);
+  }
+
+  @Override
+  public long getSize() {
+    return size;
+  }
+
+  private long estimateSize() {
+    long estimate = entities.getSize() + spatialIndex.getSize();
+    for(StringColumn column : columns) {
+      estimate += column.getSize();
+    }
+    return estimate;
+  }
+}
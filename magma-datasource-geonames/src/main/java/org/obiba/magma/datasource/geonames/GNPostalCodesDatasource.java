@@ -1,24 +1,214 @@
 package org.obiba.magma.datasource.geonames;
 
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.obiba.magma.ValueTable;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MemoryCache;
 import org.obiba.magma.support.AbstractDatasource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class GNPostalCodesDatasource extends AbstractDatasource {
 
+  private static final Logger log = LoggerFactory.getLogger(GNPostalCodesDatasource.class);
+
   public static final String TYPE = "geonames-postalcodes";
 
+  // links to the country files in the GeoNames index page
+  private static final Pattern COUNTRY_FILE = Pattern.compile("href=\"([A-Z]{2})\\.zip\"");
+
+  private static final long MIN_EVICTION_PERIOD = TimeUnit.SECONDS.toMillis(1);
+
+  private final DownloadCache downloadCache;
+
+  @Nullable
+  private final GNAllCountries allCountries;
+
+  @Nullable
+  private final Set<String> countries;
+
+  private final boolean discoverCountries;
+
+  private final long idleTimeout;
+
+  private final MemoryCache memoryCache;
+
+  private final long refreshInterval;
+
+  private final String postalCodesUrl;
+
+  private ScheduledExecutorService evictor;
+
+  private ScheduledExecutorService refresher;
+
   protected GNPostalCodesDatasource(@Nonnull String name) {
+    this(name, new DownloadCache(), false);
+  }
+
+  /**
+   * @param name
+   * @param downloadCache where the country files are downloaded
+   * @param allCountries if true, the postal codes of all the countries are downloaded at once and stored off-heap,
+   * with an additional allCountries table
+   */
+  protected GNPostalCodesDatasource(@Nonnull String name, DownloadCache downloadCache, boolean allCountries) {
+    this(name, downloadCache, allCountries, null, false, 0, new MemoryCache());
+  }
+
+  /**
+   * @param name
+   * @param downloadCache where the country files are downloaded
+   * @param allCountries if true, the postal codes of all the countries are downloaded at once and stored off-heap,
+   * with an additional allCountries table
+   * @param countries codes of the countries which tables are registered, null for all, compared ignoring case
+   * @param discoverCountries if true, the countries are the ones listed in the GeoNames index instead of the known ones
+   * @param idleTimeout time in milliseconds after which the postal codes of a table that is not read are unloaded from
+   * memory, 0 to keep them
+   * @param memoryCache retains the loaded postal codes, possibly shared with other datasources
+   */
+  protected GNPostalCodesDatasource(@Nonnull String name, DownloadCache downloadCache, boolean allCountries,
+      @Nullable Set<String> countries, boolean discoverCountries, long idleTimeout, MemoryCache memoryCache) {
+    this(name, downloadCache, allCountries, countries, discoverCountries, idleTimeout, memoryCache, 0);
+  }
+
+  /**
+   * @param name
+   * @param downloadCache where the country files are downloaded
+   * @param allCountries if true, the postal codes of all the countries are downloaded at once and stored off-heap,
+   * with an additional allCountries table
+   * @param countries codes of the countries which tables are registered, null for all, compared ignoring case
+   * @param discoverCountries if true, the countries are the ones listed in the GeoNames index instead of the known ones
+   * @param idleTimeout time in milliseconds after which the postal codes of a table that is not read are unloaded from
+   * memory, 0 to keep them
+   * @param memoryCache retains the loaded postal codes, possibly shared with other datasources
+   * @param refreshInterval time in milliseconds between the checks for newer country files, 0 to never check
+   */
+  protected GNPostalCodesDatasource(@Nonnull String name, DownloadCache downloadCache, boolean allCountries,
+      @Nullable Set<String> countries, boolean discoverCountries, long idleTimeout, MemoryCache memoryCache,
+      long refreshInterval) {
+    this(name, downloadCache, allCountries, countries, discoverCountries, idleTimeout, memoryCache, refreshInterval,
+        GNPostalCodesValueTable.POSTAL_CODES_URL);
+  }
+
+  /**
+   * @param name
+   * @param downloadCache where the country files are downloaded
+   * @param allCountries if true, the postal codes of all the countries are downloaded at once and stored off-heap,
+   * with an additional allCountries table
+   * @param countries codes of the countries which tables are registered, null for all, compared ignoring case
+   * @param discoverCountries if true, the countries are the ones listed in the GeoNames index instead of the known ones
+   * @param idleTimeout time in milliseconds after which the postal codes of a table that is not read are unloaded from
+   * memory, 0 to keep them
+   * @param memoryCache retains the loaded postal codes, possibly shared with other datasources
+   * @param refreshInterval time in milliseconds between the checks for newer country files, 0 to never check
+   * @param postalCodesUrl the GeoNames index, where the country files are downloaded from
+   */
+  GNPostalCodesDatasource(@Nonnull String name, DownloadCache downloadCache, boolean allCountries,
+      @Nullable Set<String> countries, boolean discoverCountries, long idleTimeout, MemoryCache memoryCache,
+      long refreshInterval, String postalCodesUrl) {
     super(name, TYPE);
+    this.downloadCache = downloadCache;
+    this.allCountries = allCountries ? new GNAllCountries(downloadCache, postalCodesUrl) : null;
+    this.countries = countries == null ? null : toUpperCase(countries);
+    this.discoverCountries = discoverCountries;
+    this.idleTimeout = idleTimeout;
+    this.memoryCache = memoryCache;
+    this.refreshInterval = refreshInterval;
+    this.postalCodesUrl = postalCodesUrl;
+  }
+
+  private static Set<String> toUpperCase(Iterable<String> countries) {
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for(String country : countries) {
+      builder.add(country.toUpperCase(Locale.ENGLISH));
+    }
+    return builder.build();
+  }
+
+  @Override
+  protected void onInitialise() {
+    super.onInitialise();
+    if(idleTimeout > 0) {
+      evictor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat(getName() + "-eviction").setDaemon(true).build());
+      long period = Math.max(idleTimeout / 2, MIN_EVICTION_PERIOD);
+      evictor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          evictIdleTables();
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    }
+    if(refreshInterval > 0) {
+      refresher = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat(getName() + "-refresh").setDaemon(true).build());
+      refresher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          refreshTables();
+        }
+      }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  protected void onDispose() {
+    if(evictor != null) {
+      evictor.shutdownNow();
+    }
+    if(refresher != null) {
+      refresher.shutdownNow();
+    }
+    for(ValueTable table : getValueTables()) {
+      ((GNPostalCodesValueTable) table).close();
+    }
+    super.onDispose();
   }
 
   @Override
   protected Set<String> getValueTableNames() {
+    Set<String> available = discoverCountries ? discoverCountries() : getKnownCountries();
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    if(countries == null) {
+      builder.addAll(available);
+    } else {
+      for(String country : countries) {
+        if(available.contains(country)) {
+          builder.add(country);
+        } else {
+          log.warn("No GeoNames postal codes for country: {}", country);
+        }
+      }
+    }
+    if(allCountries != null) {
+      builder.add(GNAllCountries.TABLE_NAME);
+    }
+    return builder.build();
+  }
+
+  private Set<String> getKnownCountries() {
     ImmutableSet.Builder<String> builder = ImmutableSet.builder();
     for(COUNTRIES country : COUNTRIES.values()) {
       builder.add(country.toString());
@@ -26,9 +216,98 @@ public class GNPostalCodesDatasource extends AbstractDatasource {
     return builder.build();
   }
 
+  /**
+   * Get the countries which files are listed in the GeoNames index, or the known countries if it cannot be read.
+   *
+   * @return
+   */
+  private Set<String> discoverCountries() {
+    try {
+      String index = Files.toString(downloadCache.get(postalCodesUrl), Charsets.UTF_8);
+      ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+      Matcher matcher = COUNTRY_FILE.matcher(index);
+      while(matcher.find()) {
+        builder.add(matcher.group(1));
+      }
+      Set<String> discovered = builder.build();
+      if(!discovered.isEmpty()) return discovered;
+      log.warn("No country files in the GeoNames index, using the known countries");
+    } catch(IOException e) {
+      log.warn("Unable to read the GeoNames index, using the known countries: {}", e.getMessage());
+    }
+    return getKnownCountries();
+  }
+
+  /**
+   * Unload the postal codes of the tables which were not read for the idle timeout.
+   */
+  void evictIdleTables() {
+    try {
+      for(ValueTable table : getValueTables()) {
+        if(((GNPostalCodesValueTable) table).evictIfIdle(idleTimeout)) {
+          log.info("Unloaded idle postal codes of {}", table.getName());
+        }
+      }
+    } catch(RuntimeException e) {
+      // keep the next evictions scheduled
+      log.warn("Unable to unload idle postal codes", e);
+    }
+  }
+
+  private void refreshTables() {
+    for(ValueTable table : getValueTables()) {
+      try {
+        ((GNPostalCodesValueTable) table).refresh();
+      } catch(RuntimeException e) {
+        // refresh the other countries
+        log.warn("Unable to refresh postal codes of {}", table.getName(), e);
+      }
+    }
+  }
+
   @Override
   protected ValueTable initialiseValueTable(String tableName) {
-    return new GNPostalCodesValueTable(this, tableName);
+    return new GNPostalCodesValueTable(this, tableName, downloadCache, allCountries, memoryCache, postalCodesUrl);
+  }
+
+  /**
+   * Download and load the postal codes of all the tables concurrently.
+   *
+   * @param threads maximum number of tables downloaded and parsed at the same time
+   * @return
+   * @see #warmUp(Iterable, int)
+   */
+  public Map<String, ListenableFuture<Integer>> warmUp(int threads) {
+    return warmUp(getValueTableNames(), threads);
+  }
+
+  /**
+   * Download and load the postal codes of the given tables concurrently, so that they are ready when first read.
+   *
+   * @param tableNames
+   * @param threads maximum number of tables downloaded and parsed at the same time
+   * @return the postal code count of each table, available once the table is ready
+   */
+  public Map<String, ListenableFuture<Integer>> warmUp(Iterable<String> tableNames, int threads) {
+    ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat(getName() + "-warm-up-%d").setDaemon(true).build()));
+    try {
+      ImmutableMap.Builder<String, ListenableFuture<Integer>> builder = ImmutableMap.builder();
+      for(String tableName : ImmutableSet.copyOf(tableNames)) {
+        final GNPostalCodesValueTable table = (GNPostalCodesValueTable) getValueTable(tableName);
+        builder.put(tableName, executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            log.debug("Warm up {}", table.getName());
+            return table.getEntities().size();
+          }
+        }));
+      }
+      return builder.build();
+    } finally {
+      // submitted tables are still loaded
+      executor.shutdown();
+    }
   }
 
   enum COUNTRIES {
@@ -1,15 +1,163 @@
 package org.obiba.magma.datasource.geonames;
 
+import java.io.File;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.obiba.magma.AbstractDatasourceFactory;
 import org.obiba.magma.Datasource;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MemoryCache;
+
+import com.google.common.collect.ImmutableSet;
 
 public class GNPostalCodesDatasourceFactory extends AbstractDatasourceFactory {
 
+  private File cacheDirectory = DownloadCache.DEFAULT_DIRECTORY;
+
+  private long cacheTtl = DownloadCache.DEFAULT_TTL;
+
+  private boolean allCountries;
+
+  @Nullable
+  private Set<String> countries;
+
+  private boolean discoverCountries;
+
+  private long idleTimeout;
+
+  @Nullable
+  private MemoryCache memoryCache;
+
+  private long refreshInterval;
+
+  public File getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  /**
+   * Directory where the downloaded country files are kept between restarts.
+   *
+   * @param cacheDirectory
+   */
+  public void setCacheDirectory(File cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  public long getCacheTtl() {
+    return cacheTtl;
+  }
+
+  /**
+   * Time in milliseconds during which the downloaded files are used without checking whether they have changed.
+   *
+   * @param cacheTtl
+   */
+  public void setCacheTtl(long cacheTtl) {
+    this.cacheTtl = cacheTtl;
+  }
+
+  public boolean isAllCountries() {
+    return allCountries;
+  }
+
+  /**
+   * Download the postal codes of all the countries at once and store them off-heap in a memory-mapped file, the country
+   * tables being views of it. An allCountries table is also added.
+   *
+   * @param allCountries
+   */
+  public void setAllCountries(boolean allCountries) {
+    this.allCountries = allCountries;
+  }
+
+  @Nullable
+  public Set<String> getCountries() {
+    return countries;
+  }
+
+  /**
+   * Codes of the countries which tables are registered, all of them if null. They are compared ignoring case.
+   *
+   * @param countries
+   */
+  public void setCountries(@Nullable Collection<String> countries) {
+    if(countries == null) {
+      this.countries = null;
+    } else {
+      ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+      for(String country : countries) {
+        builder.add(country.toUpperCase(Locale.ENGLISH));
+      }
+      this.countries = builder.build();
+    }
+  }
+
+  public boolean isDiscoverCountries() {
+    return discoverCountries;
+  }
+
+  /**
+   * Get the countries from the index of the GeoNames postal codes files, instead of using the known ones.
+   *
+   * @param discoverCountries
+   */
+  public void setDiscoverCountries(boolean discoverCountries) {
+    this.discoverCountries = discoverCountries;
+  }
+
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Time in milliseconds after which the postal codes of a table that is not read are unloaded from memory, 0 to keep
+   * them.
+   *
+   * @param idleTimeout
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  @Nullable
+  public MemoryCache getMemoryCache() {
+    return memoryCache;
+  }
+
+  /**
+   * Cache retaining the loaded postal codes, which can be shared with other datasources so that they all fit in one
+   * heap budget. Nothing is evicted if null.
+   *
+   * @param memoryCache
+   */
+  public void setMemoryCache(@Nullable MemoryCache memoryCache) {
+    this.memoryCache = memoryCache;
+  }
+
+  public long getRefreshInterval() {
+    return refreshInterval;
+  }
+
+  /**
+   * Time in milliseconds between the checks for newer country files, 0 to never check. The postal codes of a newer
+   * country file are loaded in the background and then replace the ones read at once. The server is not checked more
+   * often than the cache time to live, and the postal codes read from all the countries are not refreshed.
+   *
+   * @param refreshInterval
+   */
+  public void setRefreshInterval(long refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
   @Nonnull
   @Override
   protected Datasource internalCreate() {
-    return new GNPostalCodesDatasource(getName());
+    return new GNPostalCodesDatasource(getName(), new DownloadCache(cacheDirectory, cacheTtl), allCountries, countries,
+        discoverCountries, idleTimeout, memoryCache == null ? new MemoryCache() : memoryCache, refreshInterval);
   }
 }
@@ -0,0 +1,133 @@
+package org.obiba.magma.datasource.geonames;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.datasource.commons.MappedStringTable;
+import org.obiba.magma.support.VariableEntityBean;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * A range of the postal codes of the memory-mapped allCountries table: the postal codes of a country, or all of them.
+ * Nothing is held on the heap, the entities and values are decoded when read.
+ */
+final class GNPostalCodesMappedView implements GNPostalCodes {
+
+  private final MappedStringTable table;
+
+  private final int fromRow;
+
+  private final int toRow;
+
+  private volatile GNSpatialIndex spatialIndex;
+
+  private final Set<VariableEntity> entities = new AbstractSet<VariableEntity>() {
+
+    @Override
+    public Iterator<VariableEntity> iterator() {
+      return new AbstractIterator<VariableEntity>() {
+
+        private int row = fromRow;
+
+        @Override
+        protected VariableEntity computeNext() {
+          return row < toRow
+              ? new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, table.getKey(row++))
+              : endOfData();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return toRow - fromRow;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof VariableEntity && find((VariableEntity) o) != -1;
+    }
+  };
+
+  /**
+   * @param table
+   * @param fromRow inclusive
+   * @param toRow exclusive
+   */
+  GNPostalCodesMappedView(MappedStringTable table, int fromRow, int toRow) {
+    this.table = table;
+    this.fromRow = fromRow;
+    this.toRow = toRow;
+  }
+
+  @Override
+  public Set<VariableEntity> getEntities() {
+    return entities;
+  }
+
+  @Nullable
+  @Override
+  public String getColumnValue(int index, VariableEntity entity) {
+    int row = find(entity);
+    return row == -1 ? null : table.getValue(row, index);
+  }
+
+  @Override
+  public int ordinalOf(VariableEntity entity) {
+    int row = find(entity);
+    return row == -1 ? -1 : row - fromRow;
+  }
+
+  @Nullable
+  @Override
+  public String getColumnValue(int index, int row) {
+    return table.getValue(fromRow + row, index);
+  }
+
+  /**
+   * The spatial index is held on the heap, it is built when first used so that the views which are not searched by
+   * coordinates cost nothing.
+   *
+   * @return
+   */
+  @Override
+  public GNSpatialIndex getSpatialIndex() {
+    GNSpatialIndex index = spatialIndex;
+    if(index == null) {
+      synchronized(this) {
+        index = spatialIndex;
+        if(index == null) {
+          String[] coordinates = new String[toRow - fromRow];
+          for(int row = fromRow; row < toRow; row++) {
+            coordinates[row - fromRow] = table.getValue(row, GNPostalCodesValueTable.COORDINATE_COLUMN);
+          }
+          spatialIndex = index = new GNSpatialIndex(coordinates);
+        }
+      }
+    }
+    return index;
+  }
+
+  @Override
+  public VariableEntity getEntity(int row) {
+    return new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, table.getKey(fromRow + row));
+  }
+
+  @Override
+  public long getSize() {
+    // the rows are off-heap, unlike the spatial index once built
+    GNSpatialIndex index = spatialIndex;
+    return 64 + (index == null ? 0 : index.getSize());
+  }
+
+  private int find(VariableEntity entity) {
+    return GNPostalCodesValueTable.ENTITY_TYPE.equals(entity.getType())
+        ? table.find(entity.getIdentifier(), fromRow, toRow)
+        : -1;
+  }
+}
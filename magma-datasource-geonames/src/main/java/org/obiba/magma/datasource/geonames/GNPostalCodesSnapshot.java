@@ -0,0 +1,404 @@
+package org.obiba.magma.datasource.geonames;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.Value;
+import org.obiba.magma.datasource.commons.MemoryCache;
+import org.obiba.magma.datasource.commons.SnapshotFile;
+import org.obiba.magma.datasource.commons.StringTable;
+import org.obiba.magma.datasource.commons.TableSnapshot;
+import org.obiba.magma.type.DateTimeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+
+import au.com.bytecode.opencsv.CSVReader;
+import de.schlichtherle.io.ArchiveException;
+import de.schlichtherle.io.File;
+
+/**
+ * The postal codes of one download of a country file, loaded when first read and retained in the memory cache, or read
+ * from the memory-mapped table of all the countries. A table reads a snapshot until it is refreshed with a newer one.
+ * <p/>
+ * A snapshot reads its own copy of the country file, kept open so that it can still be read once the copy is deleted,
+ * when the snapshot is retired.
+ */
+class GNPostalCodesSnapshot extends TableSnapshot {
+
+  private static final Logger log = LoggerFactory.getLogger(GNPostalCodesSnapshot.class);
+
+  private static final String SNAPSHOT_SCHEMA = "geonames-postalcodes-1";
+
+  // name of the postal codes in the memory cache
+  private static final String POSTAL_CODES = "postalCodes";
+
+  // precision of the last access time
+  private static final long ACCESS_RESOLUTION = 1000;
+
+  private final GNPostalCodesValueTable table;
+
+  // copy of the downloaded country file, not replaced by the next downloads, null if read from all the countries
+  @Nullable
+  private final java.io.File zipFile;
+
+  @Nullable
+  private final ZipFile zip;
+
+  @Nullable
+  private final GNAllCountries allCountries;
+
+  // retains the postal codes
+  private final MemoryCache memoryCache;
+
+  private final Callable<GNPostalCodes> loader = new Callable<GNPostalCodes>() {
+    @Override
+    public GNPostalCodes call() throws Exception {
+      return load();
+    }
+  };
+
+  private volatile long lastAccess;
+
+  private long checksum;
+
+  // postal codes retained once retired whatever the memory cache evicts, for the value sets still reading it, null
+  // otherwise
+  @Nullable
+  private volatile GNPostalCodes retained;
+
+  /**
+   * @param table
+   * @param version
+   * @param zipFile copy of the downloaded country file, deleted once the snapshot is retired
+   * @param memoryCache
+   */
+  GNPostalCodesSnapshot(GNPostalCodesValueTable table, long version, java.io.File zipFile, MemoryCache memoryCache) {
+    this(table, version, zipFile, openZip(zipFile, table.getCountryFile()), memoryCache);
+  }
+
+  private GNPostalCodesSnapshot(GNPostalCodesValueTable table, long version, java.io.File zipFile, ZipFile zip,
+      MemoryCache memoryCache) {
+    super(version, getEntryTime(zip, table.getCountryFile()));
+    this.table = table;
+    this.zipFile = zipFile;
+    this.zip = zip;
+    allCountries = null;
+    this.memoryCache = memoryCache;
+  }
+
+  /**
+   * @param table
+   * @param allCountries the postal codes of all the countries, which are not refreshed
+   * @param memoryCache
+   */
+  GNPostalCodesSnapshot(GNPostalCodesValueTable table, GNAllCountries allCountries, MemoryCache memoryCache) {
+    super(1, allCountries.getLastModified());
+    this.table = table;
+    zipFile = null;
+    zip = null;
+    this.allCountries = allCountries;
+    this.memoryCache = memoryCache;
+  }
+
+  private static ZipFile openZip(java.io.File zipFile, String entryName) {
+    try {
+      return new ZipFile(zipFile);
+    } catch(IOException e) {
+      throw new MagmaRuntimeException("Unable to read GeoNames file: " + entryName, e);
+    }
+  }
+
+  /**
+   * Read the time of the country file from the directory of the zip file.
+   *
+   * @param zip closed if it has no country file
+   * @param entryName
+   * @return
+   */
+  private static long getEntryTime(ZipFile zip, String entryName) {
+    ZipEntry entry = zip.getEntry(entryName);
+    if(entry == null) {
+      closeZip(zip);
+      throw new MagmaRuntimeException("Unable to read GeoNames file: " + entryName);
+    }
+    return entry.getTime();
+  }
+
+  private static void closeZip(@Nullable ZipFile zip) {
+    if(zip == null) return;
+    try {
+      zip.close();
+    } catch(IOException e) {
+      log.warn("Unable to close {}: {}", zip.getName(), e.getMessage());
+    }
+  }
+
+  /**
+   * @return the copy of the country file read by this snapshot, null if read from all the countries
+   */
+  @Nullable
+  java.io.File getZipFile() {
+    return zipFile;
+  }
+
+  /**
+   * Get the checksum of the country file, which identifies the snapshot.
+   *
+   * @return 0 if read from all the countries
+   */
+  private synchronized long getChecksum() {
+    if(checksum == 0 && zipFile != null) {
+      try {
+        checksum = SnapshotFile.checksum(zipFile);
+      } catch(IOException e) {
+        throw new MagmaRuntimeException("Unable to read GeoNames file: " + table.getCountryFile(), e);
+      }
+    }
+    return checksum;
+  }
+
+  /**
+   * The last update of the table is the time of the country file of the snapshot.
+   *
+   * @return
+   */
+  Timestamps getTimestamps() {
+    final Value lastUpdate = DateTimeType.get().valueOf(new Date(getLastModified()));
+    return new Timestamps() {
+
+      @Nonnull
+      @Override
+      public Value getLastUpdate() {
+        return lastUpdate;
+      }
+
+      @Nonnull
+      @Override
+      public Value getCreated() {
+        return DateTimeType.get().nullValue();
+      }
+    };
+  }
+
+  /**
+   * Get the postal codes, loaded once or again once evicted from the memory cache, concurrent readers waiting for the
+   * same load.
+   *
+   * @return
+   */
+  GNPostalCodes getPostalCodes() {
+    long now = System.currentTimeMillis();
+    // not written on every read
+    if(now - lastAccess >= ACCESS_RESOLUTION) {
+      lastAccess = now;
+    }
+    GNPostalCodes postalCodes = memoryCache.getIfPresent(this, POSTAL_CODES);
+    if(postalCodes == null) {
+      postalCodes = retained;
+    }
+    if(postalCodes != null) return postalCodes;
+    try {
+      // once retired, the postal codes are only retained by the snapshot, for the value sets still reading it
+      postalCodes = isRetired() ? load() : memoryCache.get(this, POSTAL_CODES, loader);
+    } catch(ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), MagmaRuntimeException.class);
+      throw new MagmaRuntimeException("Unable to read Postal Codes for Country: " + table.getName() + ".",
+          e.getCause());
+    }
+    if(isRetired()) {
+      retained = postalCodes;
+    }
+    return postalCodes;
+  }
+
+  /**
+   * Get the spatial index of the postal codes of this snapshot. The index of a view of all the countries is built when
+   * first used: the postal codes are then weighed again in the memory cache, as the index is held on the heap.
+   *
+   * @param postalCodes
+   * @return
+   */
+  GNSpatialIndex getSpatialIndex(GNPostalCodes postalCodes) {
+    long size = postalCodes.getSize();
+    GNSpatialIndex index = postalCodes.getSpatialIndex();
+    if(postalCodes.getSize() != size && memoryCache.getIfPresent(this, POSTAL_CODES) == postalCodes) {
+      memoryCache.put(this, POSTAL_CODES, postalCodes);
+    }
+    return index;
+  }
+
+  /**
+   * Unload the postal codes if they were not read for the given time. They are loaded again, from the snapshot, when
+   * next read.
+   *
+   * @param idleTime in milliseconds
+   * @return true if unloaded
+   */
+  boolean evictIfIdle(long idleTime) {
+    if(System.currentTimeMillis() - lastAccess < idleTime || !memoryCache.contains(this, POSTAL_CODES)) return false;
+    memoryCache.invalidate(this, POSTAL_CODES);
+    return true;
+  }
+
+  /**
+   * Release the postal codes from the memory cache and delete the copy of the country file and its snapshot once the
+   * snapshot is replaced by a newer one. The snapshot retains the loaded postal codes for the value sets still reading
+   * it, until they are all discarded, or loads them from the copy it still has open.
+   */
+  @Override
+  protected void onRetire() {
+    GNPostalCodes loaded = memoryCache.getIfPresent(this, POSTAL_CODES);
+    if(loaded != null) {
+      retained = loaded;
+    }
+    invalidate();
+    deleteFiles();
+  }
+
+  /**
+   * Release the postal codes retained in the memory cache.
+   */
+  void invalidate() {
+    memoryCache.invalidateAll(this);
+  }
+
+  /**
+   * Release the postal codes and close the country file, when the table is disposed.
+   */
+  void close() {
+    invalidate();
+    unmount();
+    closeZip(zip);
+  }
+
+  /**
+   * Close and delete the copy of the country file and its snapshot, when the snapshot could not be published.
+   */
+  void discard() {
+    close();
+    deleteFiles();
+  }
+
+  private synchronized void deleteFiles() {
+    if(zipFile == null) return;
+    unmount();
+    deleteFiles(zipFile);
+  }
+
+  /**
+   * Delete a copy of a country file and its snapshot. On systems where opened files cannot be deleted, they are
+   * deleted on exit.
+   *
+   * @param zipFile
+   */
+  static void deleteFiles(java.io.File zipFile) {
+    delete(zipFile);
+    delete(SnapshotFile.of(zipFile, SNAPSHOT_SCHEMA).getFile());
+  }
+
+  private static void delete(java.io.File file) {
+    if(file.exists() && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * Forget what the zip virtual file system read from the country file.
+   */
+  private void unmount() {
+    if(zipFile == null) return;
+    try {
+      File.umount(new File(zipFile));
+    } catch(ArchiveException e) {
+      log.warn("Unable to unmount {}: {}", zipFile.getAbsolutePath(), e.getMessage());
+    }
+  }
+
+  /**
+   * Retain the postal codes parsed while the country file was downloaded and save their snapshot.
+   *
+   * @param parsed
+   */
+  void load(StringTable parsed) {
+    writeSnapshot(parsed);
+    memoryCache.put(this, POSTAL_CODES, newPostalCodes(parsed));
+  }
+
+  /**
+   * Load the postal codes from the snapshot of the country file if it is up to date, otherwise parse the country file
+   * and save its snapshot.
+   *
+   * @return
+   */
+  private GNPostalCodes load() {
+    if(allCountries != null) {
+      return GNAllCountries.TABLE_NAME.equals(table.getName())
+          ? allCountries.getPostalCodes()
+          : allCountries.getPostalCodes(table.getName());
+    }
+
+    StringTable snapshot = readSnapshot();
+    if(snapshot != null) return newPostalCodes(snapshot);
+
+    StringTable parsed;
+    try(CSVReader reader = table.getEntryReader(zip)) {
+      parsed = GNPostalCodesValueTable.parse(table.getName(), reader);
+    } catch(IOException e) {
+      throw new MagmaRuntimeException("Unable to read Postal Codes for Country: " + table.getName() + ".", e);
+    }
+    writeSnapshot(parsed);
+    return newPostalCodes(parsed);
+  }
+
+  /**
+   * Read the snapshot of the country file, if there is one up to date and the snapshot was not retired and its files
+   * deleted.
+   *
+   * @return null if there is no usable snapshot
+   */
+  @Nullable
+  private synchronized StringTable readSnapshot() {
+    if(isRetired()) return null;
+    List<StringTable> snapshot = getSnapshotFile().read(getChecksum());
+    return snapshot == null ? null : snapshot.get(0);
+  }
+
+  private SnapshotFile getSnapshotFile() {
+    return SnapshotFile.of(zipFile, SNAPSHOT_SCHEMA);
+  }
+
+  /**
+   * Save the snapshot of the country file, unless the snapshot was retired and its files deleted.
+   *
+   * @param parsed
+   */
+  private synchronized void writeSnapshot(StringTable parsed) {
+    if(isRetired()) return;
+    try {
+      getSnapshotFile().write(getChecksum(), ImmutableList.of(parsed));
+    } catch(IOException e) {
+      log.warn("Unable to write snapshot of {}: {}", table.getCountryFile(), e.getMessage());
+    }
+  }
+
+  private GNPostalCodes newPostalCodes(StringTable parsed) {
+    String[][] columns = new String[GNPostalCodesValueTable.COLUMN_COUNT][];
+    for(int i = 0; i < GNPostalCodesValueTable.COLUMN_COUNT; i++) {
+      columns[i] = parsed.getColumn(i);
+    }
+    return new GNPostalCodesColumns(parsed.getKeys(), columns);
+  }
+}
@@ -1,15 +1,18 @@
 package org.obiba.magma.datasource.geonames;
 
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
 import java.nio.charset.Charset;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
-import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.obiba.magma.Datasource;
 import org.obiba.magma.MagmaRuntimeException;
@@ -18,14 +21,24 @@ import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
-import org.obiba.magma.Variable;
+import org.obiba.magma.ValueType;
 import org.obiba.magma.VariableEntity;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MappedStringTable;
+import org.obiba.magma.datasource.commons.MemoryCache;
+import org.obiba.magma.datasource.commons.StringTable;
+import org.obiba.magma.datasource.commons.TableSnapshot;
 import org.obiba.magma.support.AbstractValueTable;
-import org.obiba.magma.support.VariableEntityBean;
-import org.obiba.magma.type.DateTimeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Maps;
 
 import au.com.bytecode.opencsv.CSVReader;
@@ -34,13 +47,18 @@ import de.schlichtherle.io.FileInputStream;
 
 public class GNPostalCodesValueTable extends AbstractValueTable {
 
+  private static final Logger log = LoggerFactory.getLogger(GNPostalCodesValueTable.class);
+
   protected static final String POSTAL_CODES_URL = "http://download.geonames.org/export/zip/";
 
   public static final String ENTITY_TYPE = "PostalCode";
 
-  private static final int BUFFER_SIZE = 153600;
+  static final int COLUMN_COUNT = 8;
+
+  // "[longitude,latitude]"
+  static final int COORDINATE_COLUMN = 7;
 
-  private final Map<VariableEntity, String[]> valueSets = Maps.newHashMap();
+  private static final int INITIAL_CAPACITY = 1024;
 
   private final String country;
 
@@ -48,151 +66,490 @@ public class GNPostalCodesValueTable extends AbstractValueTable {
 
   private static final Charset UTF8 = Charsets.UTF_8;
 
-  private File zipFile;
+  private final DownloadCache downloadCache;
+
+  @Nullable
+  private final GNAllCountries allCountries;
+
+  // retains the postal codes, by snapshot
+  private final MemoryCache memoryCache;
 
-  private Value lastUpdate;
+  private final String postalCodesUrl;
+
+  // the data read, swapped at once by a refresh
+  private final TableSnapshot.Reference<GNPostalCodesSnapshot> snapshots = new TableSnapshot.Reference<>();
+
+  // downloads the first snapshot when first read
+  private final Supplier<GNPostalCodesSnapshot> snapshotLoader = new Supplier<GNPostalCodesSnapshot>() {
+    @Override
+    public GNPostalCodesSnapshot get() {
+      return downloadSnapshot();
+    }
+  };
 
   public GNPostalCodesValueTable(Datasource datasource, String country) {
+    this(datasource, country, new DownloadCache());
+  }
+
+  /**
+   * @param datasource
+   * @param country
+   * @param downloadCache where the country file is downloaded
+   */
+  public GNPostalCodesValueTable(Datasource datasource, String country, DownloadCache downloadCache) {
+    this(datasource, country, downloadCache, null, new MemoryCache());
+  }
+
+  /**
+   * @param datasource
+   * @param country country code, or allCountries
+   * @param downloadCache where the country file is downloaded
+   * @param allCountries if not null, the postal codes are read from the memory-mapped table of all the countries
+   * @param memoryCache retains the loaded postal codes, which are read again from the snapshot once evicted
+   */
+  GNPostalCodesValueTable(Datasource datasource, String country, DownloadCache downloadCache,
+      @Nullable GNAllCountries allCountries, MemoryCache memoryCache) {
+    this(datasource, country, downloadCache, allCountries, memoryCache, POSTAL_CODES_URL);
+  }
+
+  /**
+   * @param datasource
+   * @param country country code, or allCountries
+   * @param downloadCache where the country file is downloaded
+   * @param allCountries if not null, the postal codes are read from the memory-mapped table of all the countries
+   * @param memoryCache retains the loaded postal codes, which are read again from the snapshot once evicted
+   * @param postalCodesUrl the GeoNames index, where the country file is downloaded from
+   */
+  GNPostalCodesValueTable(Datasource datasource, String country, DownloadCache downloadCache,
+      @Nullable GNAllCountries allCountries, MemoryCache memoryCache, String postalCodesUrl) {
     super(datasource, country);
     this.country = country;
+    this.downloadCache = downloadCache;
+    this.allCountries = allCountries;
+    this.memoryCache = memoryCache;
+    this.postalCodesUrl = postalCodesUrl;
     countryFile = country + ".txt";
-    setVariableEntityProvider(new GNPostalCodesVariableEntityProvider(this, country));
-    addVariableValueSources(new GNPostalCodesVariableValueSourceFactory());
+    setVariableEntityProvider(new GNPostalCodesVariableEntityProvider(this));
+    addVariableValueSources(new GNPostalCodesVariableValueSourceFactory(this));
   }
 
   @Override
   public ValueSet getValueSet(VariableEntity entity) throws NoSuchValueSetException {
-    return new GNPostalCodesValueSet(entity);
+    return new GNPostalCodesValueSet(getSnapshot(), entity);
   }
 
+  /**
+   * Iterate over the value sets of all the postal codes of the current snapshot with a single value set, moved from
+   * row to row: each value set is only valid until the next one is read. For reading all the variables of all the
+   * postal codes without making a value set per postal code.
+   *
+   * @return
+   */
+  public Iterable<ValueSet> scanValueSets() {
+    final GNPostalCodesSnapshot snapshot = getSnapshot();
+    return new Iterable<ValueSet>() {
+      @Override
+      public Iterator<ValueSet> iterator() {
+        final GNPostalCodesValueSet cursor = new GNPostalCodesValueSet(snapshot, snapshot.getPostalCodes());
+        final int count = cursor.postalCodes.getEntities().size();
+        return new AbstractIterator<ValueSet>() {
+          @Override
+          protected ValueSet computeNext() {
+            return cursor.row + 1 < count ? cursor.moveTo(cursor.row + 1) : endOfData();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * The last update of the table is the one of the snapshot currently read.
+   *
+   * @return
+   */
   @Override
   public Timestamps getTimestamps() {
-    return new GNPostalCodesTimestamps();
+    return getSnapshot().getTimestamps();
   }
 
-  private void downloadFile() throws IOException {
+  String getCountryFile() {
+    return countryFile;
+  }
 
-    // Get a connection to the URL and start up a buffered reader.
-    URL url = new URL(POSTAL_CODES_URL + country + ".zip");
-    url.openConnection();
+  /**
+   * Get the snapshot of the postal codes currently read, which country file is downloaded when first read.
+   *
+   * @return
+   */
+  GNPostalCodesSnapshot getSnapshot() {
+    return snapshots.get(snapshotLoader);
+  }
 
-    // Setup a buffered file writer to write out what we read from the website.
-    java.io.File file = java.io.File.createTempFile("postal-codes", ".zip");
-    file.deleteOnExit();
-    try(InputStream reader = url.openStream();
-        FileOutputStream writer = new FileOutputStream(file)) {
-      byte[] buffer = new byte[BUFFER_SIZE];
-      int bytesRead = 0;
-      while((bytesRead = reader.read(buffer)) > 0) {
-        writer.write(buffer, 0, bytesRead);
-        buffer = new byte[BUFFER_SIZE];
-      }
+  /**
+   * Download the country file, parsing it while it arrives if it has changed since it was last downloaded, and make
+   * the first snapshot of it.
+   *
+   * @return
+   */
+  private GNPostalCodesSnapshot downloadSnapshot() {
+    if(allCountries != null) return new GNPostalCodesSnapshot(this, allCountries, memoryCache);
+
+    GNZipEntryParser parser = new GNZipEntryParser(countryFile, country);
+    java.io.File zip = keepZipFile(parser);
+    // left by a previous run
+    downloadCache.discardCopies(downloadCache.getFile(getZipFileUrl()), zip);
+    GNPostalCodesSnapshot snapshot = new GNPostalCodesSnapshot(this, 1, zip, memoryCache);
+    StringTable parsed = parser.getTable();
+    if(parsed != null) {
+      snapshot.load(parsed);
     }
+    return snapshot;
+  }
 
-    zipFile = new File(file);
+  /**
+   * Download the country zip file, if it has changed since it was last downloaded.
+   *
+   * @param parser if not null, parses the country file while it is downloaded
+   * @return
+   */
+  private java.io.File downloadZipFile(@Nullable GNZipEntryParser parser) {
+    try {
+      String url = getZipFileUrl();
+      return parser == null ? downloadCache.get(url) : downloadCache.stream(url, parser);
+    } catch(IOException e) {
+      throw new MagmaRuntimeException("Unable to download GeoNames file: " + countryFile, e);
+    }
   }
 
-  public CSVReader getEntryReader() {
+  /**
+   * Download the country zip file, if it has changed since it was last downloaded, for a snapshot to read.
+   *
+   * @param parser parses the country file while it is downloaded
+   * @return a copy of the country zip file, which the next downloads do not replace
+   */
+  private java.io.File keepZipFile(GNZipEntryParser parser) {
+    java.io.File zip = downloadZipFile(parser);
+    try {
+      return downloadCache.keep(zip);
+    } catch(IOException e) {
+      throw new MagmaRuntimeException("Unable to read GeoNames file: " + countryFile, e);
+    }
+  }
+
+  private String getZipFileUrl() {
+    return postalCodesUrl + country + ".zip";
+  }
+
+  /**
+   * Check whether the country file has changed and, if so, load the newer postal codes and publish them at once. The
+   * value sets obtained before keep reading the snapshot they were obtained from, which reads its own copy of the
+   * country file. If the newer postal codes cannot be loaded, the current ones are still read and the newer ones are
+   * loaded again by the next refresh. The postal codes read from all the countries are not refreshed.
+   *
+   * @return true if newer postal codes were published
+   */
+  public synchronized boolean refresh() {
+    GNPostalCodesSnapshot previous = snapshots.peek();
+    // nothing was read yet, the latest postal codes will be downloaded when first read
+    if(previous == null || allCountries != null) return false;
+
+    GNZipEntryParser parser = new GNZipEntryParser(countryFile, country);
+    java.io.File zip = keepZipFile(parser);
+    // unchanged: the copies are named after their checksum
+    if(zip.equals(previous.getZipFile())) return false;
+
+    GNPostalCodesSnapshot next = null;
+    boolean published = false;
     try {
-      if(zipFile == null) {
-        downloadFile();
+      next = new GNPostalCodesSnapshot(this, previous.getVersion() + 1, zip, memoryCache);
+      StringTable parsed = parser.getTable();
+      // otherwise downloaded by a refresh that failed, and loaded when first read
+      if(parsed != null) {
+        next.load(parsed);
+      }
+      published = snapshots.publish(previous, next);
+      log.info("Refreshed postal codes of {} to snapshot {}", country, next.getVersion());
+      return published;
+    } finally {
+      if(!published) {
+        if(next == null) {
+          GNPostalCodesSnapshot.deleteFiles(zip);
+        } else {
+          next.discard();
+        }
       }
-      File file = getEntryFile();
-      return new CSVReader(new InputStreamReader(new FileInputStream(file), UTF8), '\t');
+    }
+  }
+
+  public CSVReader getEntryReader() {
+    java.io.File zip = getSnapshot().getZipFile();
+    return getEntryReader(zip == null ? downloadZipFile(null) : zip);
+  }
+
+  CSVReader getEntryReader(java.io.File zip) {
+    try {
+      return new CSVReader(new InputStreamReader(new FileInputStream(getEntryFile(zip)), UTF8), '\t');
     } catch(IOException e) {
-      throw new MagmaRuntimeException("Unable to download GeoNames file: " + countryFile, e);
+      throw new MagmaRuntimeException("Unable to read GeoNames file: " + countryFile, e);
     }
   }
 
+  /**
+   * @param zip an opened country file
+   * @return
+   * @throws IOException
+   */
+  CSVReader getEntryReader(ZipFile zip) throws IOException {
+    ZipEntry entry = zip.getEntry(countryFile);
+    if(entry == null) throw new FileNotFoundException(countryFile);
+    return new CSVReader(new InputStreamReader(zip.getInputStream(entry), UTF8), '\t');
+  }
+
   public File getEntryFile() {
-    return new File(zipFile, countryFile);
+    java.io.File zip = getSnapshot().getZipFile();
+    return getEntryFile(zip == null ? downloadZipFile(null) : zip);
   }
 
-  class GNPostalCodesValueSet implements ValueSet {
+  private File getEntryFile(java.io.File zip) {
+    return new File(new File(zip), countryFile);
+  }
 
-    private final VariableEntity entity;
+  /**
+   * Get the postal codes, the data being loaded in memory if not already done.
+   *
+   * @return
+   */
+  Set<VariableEntity> getEntities() {
+    return getPostalCodes().getEntities();
+  }
 
-    GNPostalCodesValueSet(VariableEntity entity) {
-      this.entity = entity;
-    }
+  /**
+   * Find the postal codes nearest to a point, the data being loaded in memory if not already done.
+   *
+   * @param longitude
+   * @param latitude
+   * @param count maximum number of postal codes
+   * @return postal codes with coordinates, nearest first
+   */
+  public List<VariableEntity> findNearest(double longitude, double latitude, int count) {
+    GNPostalCodesSnapshot snapshot = getSnapshot();
+    GNPostalCodes codes = snapshot.getPostalCodes();
+    return toEntities(codes, snapshot.getSpatialIndex(codes).findNearest(longitude, latitude, count));
+  }
 
-    @Override
-    public ValueTable getValueTable() {
-      return GNPostalCodesValueTable.this;
-    }
+  /**
+   * Find the postal codes within a great-circle distance of a point, the data being loaded in memory if not already
+   * done.
+   *
+   * @param longitude
+   * @param latitude
+   * @param radius in km
+   * @return nearest first
+   */
+  public List<VariableEntity> findWithin(double longitude, double latitude, double radius) {
+    GNPostalCodesSnapshot snapshot = getSnapshot();
+    GNPostalCodes codes = snapshot.getPostalCodes();
+    return toEntities(codes, snapshot.getSpatialIndex(codes).findWithin(longitude, latitude, radius));
+  }
 
-    @Override
-    public VariableEntity getVariableEntity() {
-      return entity;
+  /**
+   * Find the postal codes within a bounding box, the data being loaded in memory if not already done. The box crosses
+   * the antimeridian if its minimum longitude is greater than its maximum longitude.
+   *
+   * @param minLongitude
+   * @param minLatitude
+   * @param maxLongitude
+   * @param maxLatitude
+   * @return in the order of the entities
+   */
+  public List<VariableEntity> findInBoundingBox(double minLongitude, double minLatitude, double maxLongitude,
+      double maxLatitude) {
+    GNPostalCodesSnapshot snapshot = getSnapshot();
+    GNPostalCodes codes = snapshot.getPostalCodes();
+    return toEntities(codes,
+        snapshot.getSpatialIndex(codes).findInBoundingBox(minLongitude, minLatitude, maxLongitude, maxLatitude));
+  }
+
+  private List<VariableEntity> toEntities(GNPostalCodes codes, int... rows) {
+    ImmutableList.Builder<VariableEntity> entities = ImmutableList.builder();
+    for(int row : rows) {
+      entities.add(codes.getEntity(row));
     }
+    return entities.build();
+  }
 
-    Value getValue(Variable variable) {
-      String[] valueSet = getValueSet();
-      if(valueSet == null) {
-        return variable.getValueType().nullValue();
-      }
-      return variable.getValueType().valueOf(valueSet[Integer.parseInt(variable.getAttributeStringValue("index"))]);
+  /**
+   * Get the postal codes of the snapshot currently read.
+   *
+   * @return
+   */
+  GNPostalCodes getPostalCodes() {
+    return getSnapshot().getPostalCodes();
+  }
+
+  /**
+   * Unload the postal codes if they were not read for the given time. They are loaded again, from the snapshot, when
+   * next read.
+   *
+   * @param idleTime in milliseconds
+   * @return true if unloaded
+   */
+  boolean evictIfIdle(long idleTime) {
+    GNPostalCodesSnapshot snapshot = snapshots.peek();
+    return snapshot != null && snapshot.evictIfIdle(idleTime);
+  }
+
+  /**
+   * Release the postal codes retained in the memory cache and close the country file, when the table is disposed.
+   */
+  void close() {
+    GNPostalCodesSnapshot snapshot = snapshots.peek();
+    if(snapshot != null) {
+      snapshot.close();
     }
+  }
 
-    /**
-     * Load the data in memory if not already done.
-     *
-     * @param countryFile
-     * @return
-     */
-    private String[] getValueSet() {
-      try {
-        if(valueSets.keySet().isEmpty()) {
-          CSVReader reader = getEntryReader();
-          String[] line;
-          while((line = reader.readNext()) != null) {
-            VariableEntity entityIdentifier = new VariableEntityBean(ENTITY_TYPE, line[0] + "-" + line[1]);
-            if(getVariableEntityProvider().getVariableEntities().contains(entityIdentifier)) {
-              valueSets.put(entityIdentifier, getReformedLine(line));
-            }
-          }
-          reader.close();
+  /**
+   * Parse the postal codes and their data as one array per column, in a single pass over a GeoNames postal codes file.
+   *
+   * @param name
+   * @param reader
+   * @return
+   * @throws IOException
+   */
+  static StringTable parse(String name, CSVReader reader) throws IOException {
+    Map<String, Integer> ordinals = Maps.newLinkedHashMap();
+    String[][] columns = new String[COLUMN_COUNT][INITIAL_CAPACITY];
+    // place and region names are repeated by many postal codes
+    Interner<String> strings = Interners.newStrongInterner();
+
+    String[] line;
+    while((line = reader.readNext()) != null) {
+      String identifier = getIdentifier(line);
+      Integer ordinal = ordinals.get(identifier);
+      if(ordinal == null) {
+        ordinal = ordinals.size();
+        ordinals.put(identifier, ordinal);
+        if(ordinal == columns[0].length) {
+          columns = resize(columns, ordinal * 2);
         }
-      } catch(IOException e) {
-        throw new MagmaRuntimeException("Unable to read file for country: " + countryFile, e);
       }
-      return valueSets.get(entity);
+      setRow(columns, ordinal, strings, line);
     }
 
-    private String[] getReformedLine(String... line) {
-      String[] newline = new String[8];
+    return new StringTable(name, ordinals.keySet().toArray(new String[ordinals.size()]),
+        resize(columns, ordinals.size()));
+  }
 
-      System.arraycopy(line, 2, newline, 0, 7);
-      if(!Strings.isNullOrEmpty(line[9]) && !Strings.isNullOrEmpty(line[10])) {
-        String coordinate = "[" + line[10] + "," + line[9] + "]";
-        newline[7] = coordinate;
-      }
-      return newline;
+  /**
+   * Write the postal codes and their data as they are read from a GeoNames postal codes file, so that they are not held
+   * on the heap.
+   *
+   * @param reader
+   * @param writer
+   * @throws IOException
+   */
+  static void write(CSVReader reader, MappedStringTable.Writer writer) throws IOException {
+    String[] row = new String[COLUMN_COUNT];
+    String[] line;
+    while((line = reader.readNext()) != null) {
+      System.arraycopy(line, 2, row, 0, COORDINATE_COLUMN);
+      row[COORDINATE_COLUMN] = getCoordinates(line);
+      writer.addRow(getIdentifier(line), row);
     }
+  }
 
-    @Override
-    public Timestamps getTimestamps() {
-      return new GNPostalCodesTimestamps();
+  private static String getIdentifier(String... line) {
+    return line[0] + "-" + line[1];
+  }
+
+  private static String[][] resize(String[][] previousColumns, int length) {
+    String[][] newColumns = new String[COLUMN_COUNT][];
+    for(int i = 0; i < COLUMN_COUNT; i++) {
+      newColumns[i] = Arrays.copyOf(previousColumns[i], length);
     }
+    return newColumns;
+  }
+
+  private static void setRow(String[][] newColumns, int ordinal, Interner<String> strings, String... line) {
+    for(int i = 0; i < 7; i++) {
+      newColumns[i][ordinal] = strings.intern(line[i + 2]);
+    }
+    newColumns[COORDINATE_COLUMN][ordinal] = getCoordinates(line);
+  }
 
+  @Nullable
+  private static String getCoordinates(String... line) {
+    return Strings.isNullOrEmpty(line[9]) || Strings.isNullOrEmpty(line[10])
+        ? null
+        : "[" + line[10] + "," + line[9] + "]";
   }
 
-  private class GNPostalCodesTimestamps implements Timestamps {
+  /**
+   * The value set of a postal code, resolved once to its row in the postal codes of its snapshot: values are read by
+   * index. Moved from row to row when used as a cursor.
+   */
+  class GNPostalCodesValueSet implements ValueSet {
+
+    // read until it is retired
+    private final GNPostalCodesSnapshot snapshot;
+
+    // resolved once and held whatever the memory cache evicts
+    private final GNPostalCodes postalCodes;
+
+    // ordinal of the postal code in the snapshot, -1 if it is not one of its postal codes
+    private int row;
+
+    // made when first read by a cursor
+    @Nullable
+    private VariableEntity entity;
+
+    GNPostalCodesValueSet(GNPostalCodesSnapshot snapshot, VariableEntity entity) {
+      this.snapshot = snapshot;
+      postalCodes = snapshot.getPostalCodes();
+      row = postalCodes.ordinalOf(entity);
+      this.entity = entity;
+    }
+
+    /**
+     * A cursor on the rows of the postal codes of a snapshot, before the first row.
+     *
+     * @param snapshot
+     * @param postalCodes
+     */
+    private GNPostalCodesValueSet(GNPostalCodesSnapshot snapshot, GNPostalCodes postalCodes) {
+      this.snapshot = snapshot;
+      this.postalCodes = postalCodes;
+      row = -1;
+    }
+
+    private GNPostalCodesValueSet moveTo(int row) {
+      this.row = row;
+      entity = null;
+      return this;
+    }
 
-    @Nonnull
     @Override
-    public Value getLastUpdate() {
-      if(lastUpdate == null) lastUpdate = DateTimeType.get().valueOf(new Date(getEntryFile().lastModified()));
-      return lastUpdate;
+    public ValueTable getValueTable() {
+      return GNPostalCodesValueTable.this;
     }
 
-    @Nonnull
     @Override
-    public Value getCreated() {
-      return DateTimeType.get().nullValue();
+    public VariableEntity getVariableEntity() {
+      if(entity == null) {
+        entity = postalCodes.getEntity(row);
+      }
+      return entity;
     }
-  }
-}
 
+    Value getValue(int index, ValueType type) {
+      return type.valueOf(row == -1 ? null : postalCodes.getColumnValue(index, row));
+    }
 
+    @Override
+    public Timestamps getTimestamps() {
+      return snapshot.getTimestamps();
+    }
 
+  }
+}
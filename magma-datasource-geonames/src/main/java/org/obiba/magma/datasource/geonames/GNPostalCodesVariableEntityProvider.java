@@ -1,28 +1,16 @@
 package org.obiba.magma.datasource.geonames;
 
-import java.io.IOException;
 import java.util.Set;
 
-import org.obiba.magma.MagmaRuntimeException;
 import org.obiba.magma.VariableEntity;
-import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.support.VariableEntityProvider;
 
-import com.google.common.collect.ImmutableSet;
-
-import au.com.bytecode.opencsv.CSVReader;
-
 public class GNPostalCodesVariableEntityProvider implements VariableEntityProvider {
 
-  private Set<VariableEntity> entities;
-
   private final GNPostalCodesValueTable table;
 
-  private final String countryName;
-
-  public GNPostalCodesVariableEntityProvider(GNPostalCodesValueTable table, String countryName) {
+  public GNPostalCodesVariableEntityProvider(GNPostalCodesValueTable table) {
     this.table = table;
-    this.countryName = countryName;
   }
 
   @Override
@@ -35,33 +23,13 @@ public class GNPostalCodesVariableEntityProvider implements VariableEntityProvid
     return GNPostalCodesValueTable.ENTITY_TYPE.equals(entityType);
   }
 
-  @SuppressWarnings("CallToPrintStackTrace")
+  /**
+   * The postal codes are read together with their values, in a single pass over the country file.
+   *
+   * @return
+   */
   @Override
   public Set<VariableEntity> getVariableEntities() {
-
-    if(entities == null) {
-      CSVReader reader = table.getEntryReader();
-
-      ImmutableSet.Builder<VariableEntity> builder = ImmutableSet.builder();
-
-      try {
-        String[] nextLine;
-        while((nextLine = reader.readNext()) != null) {
-
-          builder.add(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, nextLine[0] + "-" + nextLine[1]));
-        }
-      } catch(IOException e) {
-        throw new MagmaRuntimeException("Unable to read Postal Codes for Country: " + countryName + ".", e);
-      } finally {
-        try {
-          reader.close();
-        } catch(IOException e) {
-          e.printStackTrace();
-        }
-      }
-
-      entities = builder.build();
-    }
-    return entities;
+    return table.getEntities();
   }
 }
@@ -1,5 +1,8 @@
 package org.obiba.magma.datasource.geonames;
 
+import java.util.List;
+import java.util.SortedSet;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -7,15 +10,28 @@ import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueType;
 import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.VectorSource;
 
-public class GNPostalCodesVariableValueSource implements VariableValueSource {
+import com.google.common.collect.Lists;
+
+public class GNPostalCodesVariableValueSource implements VariableValueSource, VectorSource {
+
+  private final GNPostalCodesValueTable table;
 
   private final Variable variable;
 
-  protected GNPostalCodesVariableValueSource(Variable.Builder builder) {
+  // resolved once, instead of reading the variable's index attribute for each value
+  private final int index;
+
+  private final ValueType type;
+
+  protected GNPostalCodesVariableValueSource(GNPostalCodesValueTable table, Variable.Builder builder, int index) {
+    this.table = table;
     variable = builder.build();
+    this.index = index;
+    type = variable.getValueType();
   }
 
   @Override
@@ -31,23 +47,42 @@ public class GNPostalCodesVariableValueSource implements VariableValueSource {
   @Nonnull
   @Override
   public ValueType getValueType() {
-    return variable.getValueType();
+    return type;
   }
 
   @Nonnull
   @Override
   public Value getValue(ValueSet valueSet) {
-    return ((GNPostalCodesValueTable.GNPostalCodesValueSet) valueSet).getValue(variable);
+    return ((GNPostalCodesValueTable.GNPostalCodesValueSet) valueSet).getValue(index, type);
   }
 
   @Override
   public boolean supportVectorSource() {
-    return false;
+    return true;
   }
 
   @Nullable
   @Override
   public VectorSource asVectorSource() {
-    return null;
+    return this;
+  }
+
+  /**
+   * Stream the values of the variable's column for the requested postal codes, read by ordinal from the postal codes
+   * resolved once.
+   *
+   * @param entities
+   * @return
+   */
+  @Override
+  public Iterable<Value> getValues(SortedSet<VariableEntity> entities) {
+    GNPostalCodes postalCodes = table.getPostalCodes();
+
+    List<Value> values = Lists.newArrayListWithCapacity(entities.size());
+    for(VariableEntity entity : entities) {
+      int row = postalCodes.ordinalOf(entity);
+      values.add(type.valueOf(row == -1 ? null : postalCodes.getColumnValue(index, row)));
+    }
+    return values;
   }
 }
@@ -14,6 +14,12 @@ import com.google.common.collect.ImmutableSet;
 
 public class GNPostalCodesVariableValueSourceFactory implements VariableValueSourceFactory {
 
+  private final GNPostalCodesValueTable table;
+
+  public GNPostalCodesVariableValueSourceFactory(GNPostalCodesValueTable table) {
+    this.table = table;
+  }
+
   @Override
   public Set<VariableValueSource> createSources() {
     ImmutableSet.Builder<VariableValueSource> builder = ImmutableSet.builder();
@@ -42,7 +48,7 @@ public class GNPostalCodesVariableValueSourceFactory implements VariableValueSou
   }
 
   private VariableValueSource newVariableValueSource(Variable.Builder builder, int index) {
-    return new GNPostalCodesVariableValueSource(builder.addAttribute("index", Integer.toString(index)));
+    return new GNPostalCodesVariableValueSource(table, builder.addAttribute("index", Integer.toString(index)), index);
   }
 
   private Variable.Builder newVariable(String name, ValueType type) {
@@ -0,0 +1,339 @@
+package org.obiba.magma.datasource.geonames;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * Static 2-d tree of the coordinates of postal codes, held in primitive arrays and built once when the postal codes
+ * are loaded. Bounding box lookups are range searches in the tree; radius lookups search the bounding box of the circle
+ * and keep the points within the great-circle distance; nearest lookups search growing radiuses.
+ */
+final class GNSpatialIndex {
+
+  // mean radius, in km
+  static final double EARTH_RADIUS = 6371.0088;
+
+  private static final double INITIAL_RADIUS = 10;
+
+  private static final int[] NO_ROWS = new int[0];
+
+  // tree order: each range is split at its middle point, by latitude then longitude alternately
+  private final double[] longitudes;
+
+  private final double[] latitudes;
+
+  private final int[] rows;
+
+  /**
+   * @param coordinates "[longitude,latitude]" of each row, null if unknown
+   */
+  GNSpatialIndex(String... coordinates) {
+    double[] lons = new double[coordinates.length];
+    double[] lats = new double[coordinates.length];
+    int[] indexed = new int[coordinates.length];
+    int count = 0;
+    for(int row = 0; row < coordinates.length; row++) {
+      if(parse(coordinates[row], lons, lats, count)) {
+        indexed[count++] = row;
+      }
+    }
+    longitudes = Arrays.copyOf(lons, count);
+    latitudes = Arrays.copyOf(lats, count);
+    rows = Arrays.copyOf(indexed, count);
+    build(0, count, true);
+  }
+
+  int size() {
+    return rows.length;
+  }
+
+  /**
+   * @return estimated bytes
+   */
+  long getSize() {
+    return 48 + 20L * rows.length;
+  }
+
+  /**
+   * Find the rows which coordinates are within a bounding box. The box crosses the antimeridian if its minimum
+   * longitude is greater than its maximum longitude.
+   *
+   * @param minLongitude
+   * @param minLatitude
+   * @param maxLongitude
+   * @param maxLatitude
+   * @return rows in ascending order
+   */
+  int[] findInBoundingBox(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+    Hits hits = new Hits();
+    if(minLongitude <= maxLongitude) {
+      search(0, rows.length, true, minLatitude, maxLatitude, minLongitude, maxLongitude, hits);
+    } else {
+      search(0, rows.length, true, minLatitude, maxLatitude, minLongitude, 180, hits);
+      search(0, rows.length, true, minLatitude, maxLatitude, -180, maxLongitude, hits);
+    }
+    int[] found = new int[hits.count];
+    for(int i = 0; i < hits.count; i++) {
+      found[i] = rows[hits.positions[i]];
+    }
+    Arrays.sort(found);
+    return found;
+  }
+
+  /**
+   * Find the rows which coordinates are within a distance of a point.
+   *
+   * @param longitude
+   * @param latitude
+   * @param radius great-circle distance, in km
+   * @return rows, nearest first
+   */
+  int[] findWithin(double longitude, double latitude, double radius) {
+    return findWithin(longitude, latitude, radius, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Find the rows which coordinates are the nearest to a point.
+   *
+   * @param longitude
+   * @param latitude
+   * @param count maximum number of rows
+   * @return rows, nearest first
+   */
+  int[] findNearest(double longitude, double latitude, int count) {
+    if(count <= 0 || rows.length == 0) return NO_ROWS;
+    double radius = INITIAL_RADIUS;
+    while(true) {
+      // all the points out of the radius are farther than the ones found
+      int[] found = findWithin(longitude, latitude, radius, count);
+      if(found.length == Math.min(count, rows.length) || radius >= Math.PI * EARTH_RADIUS) return found;
+      radius *= 4;
+    }
+  }
+
+  private int[] findWithin(double longitude, double latitude, double radius, int count) {
+    Hits hits = new Hits();
+    double angle = radius / EARTH_RADIUS;
+    double deltaLatitude = Math.toDegrees(angle);
+    double minLatitude = latitude - deltaLatitude;
+    double maxLatitude = latitude + deltaLatitude;
+    if(minLatitude <= -90 || maxLatitude >= 90 || angle >= Math.PI / 2) {
+      // a pole is within the circle
+      search(0, rows.length, true, Math.max(minLatitude, -90), Math.min(maxLatitude, 90), -180, 180, hits);
+    } else {
+      double deltaLongitude = Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(Math.toRadians(latitude))));
+      double minLongitude = longitude - deltaLongitude;
+      double maxLongitude = longitude + deltaLongitude;
+      if(minLongitude < -180) {
+        search(0, rows.length, true, minLatitude, maxLatitude, minLongitude + 360, 180, hits);
+        search(0, rows.length, true, minLatitude, maxLatitude, -180, maxLongitude, hits);
+      } else if(maxLongitude > 180) {
+        search(0, rows.length, true, minLatitude, maxLatitude, minLongitude, 180, hits);
+        search(0, rows.length, true, minLatitude, maxLatitude, -180, maxLongitude - 360, hits);
+      } else {
+        search(0, rows.length, true, minLatitude, maxLatitude, minLongitude, maxLongitude, hits);
+      }
+    }
+    return nearest(hits, longitude, latitude, radius, count);
+  }
+
+  private int[] nearest(Hits hits, double longitude, double latitude, double radius, int count) {
+    double[] distances = new double[hits.count];
+    int[] positions = hits.positions;
+    int size = 0;
+    for(int i = 0; i < hits.count; i++) {
+      int position = positions[i];
+      double distance = distance(longitude, latitude, longitudes[position], latitudes[position]);
+      if(distance <= radius) {
+        distances[size] = distance;
+        positions[size++] = position;
+      }
+    }
+    int[] found = new int[Math.min(size, count)];
+    sortNearest(distances, positions, 0, size - 1, found.length);
+    for(int i = 0; i < found.length; i++) {
+      found[i] = rows[positions[i]];
+    }
+    return found;
+  }
+
+  /**
+   * Partial quicksort of the points found: the nearest ones of a range are ordered by distance, then by row, the
+   * farther ones being left unordered after them.
+   *
+   * @param distances
+   * @param positions
+   * @param from inclusive
+   * @param to inclusive
+   * @param count number of nearest points to order
+   */
+  private void sortNearest(double[] distances, int[] positions, int from, int to, int count) {
+    int left = from;
+    int right = to;
+    while(left < right && left < count) {
+      int middle = (left + right) >>> 1;
+      double pivotDistance = distances[middle];
+      int pivotRow = rows[positions[middle]];
+      int i = left;
+      int j = right;
+      while(i <= j) {
+        while(compare(distances[i], rows[positions[i]], pivotDistance, pivotRow) < 0) i++;
+        while(compare(distances[j], rows[positions[j]], pivotDistance, pivotRow) > 0) j--;
+        if(i <= j) {
+          swap(distances, positions, i++, j--);
+        }
+      }
+      // recurse into the smaller range, so that the stack stays shallow
+      if(j - left < right - i) {
+        sortNearest(distances, positions, left, j, count);
+        left = i;
+      } else {
+        sortNearest(distances, positions, i, right, count);
+        right = j;
+      }
+    }
+  }
+
+  private static int compare(double distance1, int row1, double distance2, int row2) {
+    int compared = Double.compare(distance1, distance2);
+    return compared == 0 ? Integer.compare(row1, row2) : compared;
+  }
+
+  private static void swap(double[] distances, int[] positions, int i, int j) {
+    double distance = distances[i];
+    distances[i] = distances[j];
+    distances[j] = distance;
+    int position = positions[i];
+    positions[i] = positions[j];
+    positions[j] = position;
+  }
+
+  /**
+   * Great-circle distance between two points, using the haversine formula.
+   *
+   * @param longitude1
+   * @param latitude1
+   * @param longitude2
+   * @param latitude2
+   * @return in km
+   */
+  static double distance(double longitude1, double latitude1, double longitude2, double latitude2) {
+    double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+    double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+    double a = sinLatitude * sinLatitude +
+        Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sinLongitude * sinLongitude;
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  private void search(int from, int to, boolean byLatitude, double minLatitude, double maxLatitude,
+      double minLongitude, double maxLongitude, Hits hits) {
+    if(from >= to) return;
+    int middle = (from + to) >>> 1;
+    double latitude = latitudes[middle];
+    double longitude = longitudes[middle];
+    if(minLatitude <= latitude && latitude <= maxLatitude && minLongitude <= longitude && longitude <= maxLongitude) {
+      hits.add(middle);
+    }
+    double split = byLatitude ? latitude : longitude;
+    if((byLatitude ? minLatitude : minLongitude) <= split) {
+      search(from, middle, !byLatitude, minLatitude, maxLatitude, minLongitude, maxLongitude, hits);
+    }
+    if(split <= (byLatitude ? maxLatitude : maxLongitude)) {
+      search(middle + 1, to, !byLatitude, minLatitude, maxLatitude, minLongitude, maxLongitude, hits);
+    }
+  }
+
+  /**
+   * Order the points of a range so that its middle point splits it, then order both halves the same way on the other
+   * axis.
+   *
+   * @param from
+   * @param to
+   * @param byLatitude
+   */
+  private void build(int from, int to, boolean byLatitude) {
+    if(to - from < 2) return;
+    int middle = (from + to) >>> 1;
+    select(from, to - 1, middle, byLatitude ? latitudes : longitudes);
+    build(from, middle, !byLatitude);
+    build(middle + 1, to, !byLatitude);
+  }
+
+  /**
+   * Quickselect: move the k-th smallest key of a range at k, smaller or equal keys before, greater or equal after.
+   *
+   * @param left inclusive
+   * @param right inclusive
+   * @param k
+   * @param keys
+   */
+  private void select(int left, int right, int k, double... keys) {
+    int from = left;
+    int to = right;
+    while(from < to) {
+      double pivot = keys[(from + to) >>> 1];
+      int i = from;
+      int j = to;
+      while(i <= j) {
+        while(keys[i] < pivot) i++;
+        while(keys[j] > pivot) j--;
+        if(i <= j) {
+          swap(i++, j--);
+        }
+      }
+      if(k <= j) {
+        to = j;
+      } else if(k >= i) {
+        from = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int i, int j) {
+    double longitude = longitudes[i];
+    longitudes[i] = longitudes[j];
+    longitudes[j] = longitude;
+    double latitude = latitudes[i];
+    latitudes[i] = latitudes[j];
+    latitudes[j] = latitude;
+    int row = rows[i];
+    rows[i] = rows[j];
+    rows[j] = row;
+  }
+
+  private static boolean parse(@Nullable String coordinate, double[] longitudes, double[] latitudes, int index) {
+    if(coordinate == null || coordinate.length() < 2) return false;
+    int comma = coordinate.indexOf(',');
+    if(comma == -1) return false;
+    try {
+      double longitude = Double.parseDouble(coordinate.substring(1, comma));
+      double latitude = Double.parseDouble(coordinate.substring(comma + 1, coordinate.length() - 1));
+      if(Math.abs(longitude) > 180 || Math.abs(latitude) > 90) return false;
+      longitudes[index] = longitude;
+      latitudes[index] = latitude;
+      return true;
+    } catch(NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Positions in the tree found by a search.
+   */
+  private static final class Hits {
+
+    private int[] positions = new int[16];
+
+    private int count;
+
+    private void add(int position) {
+      if(count == positions.length) {
+        positions = Arrays.copyOf(positions, count * 2);
+      }
+      positions[count++] = position;
+    }
+  }
+}
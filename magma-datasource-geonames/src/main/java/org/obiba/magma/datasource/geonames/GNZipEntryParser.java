@@ -0,0 +1,71 @@
+package org.obiba.magma.datasource.geonames;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.StringTable;
+
+import com.google.common.base.Charsets;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Parses the postal codes file of a GeoNames zip file while it is downloaded, instead of once it is on disk.
+ */
+final class GNZipEntryParser implements DownloadCache.StreamHandler {
+
+  private final String entryName;
+
+  private final String tableName;
+
+  @Nullable
+  private StringTable table;
+
+  /**
+   * @param entryName the postal codes file in the zip file
+   * @param tableName
+   */
+  GNZipEntryParser(String entryName, String tableName) {
+    this.entryName = entryName;
+    this.tableName = tableName;
+  }
+
+  @Override
+  public void handle(InputStream input) throws IOException {
+    table = GNPostalCodesValueTable.parse(tableName, openEntry(input, entryName));
+  }
+
+  /**
+   * Read a postal codes file of a zip file being downloaded.
+   *
+   * @param input the zip file, not to be closed as it belongs to the download
+   * @param entryName
+   * @return
+   * @throws IOException
+   */
+  static CSVReader openEntry(InputStream input, String entryName) throws IOException {
+    ZipInputStream zip = new ZipInputStream(input);
+    ZipEntry entry;
+    while((entry = zip.getNextEntry()) != null) {
+      if(entryName.equals(entry.getName())) {
+        return new CSVReader(new InputStreamReader(zip, Charsets.UTF_8), '\t');
+      }
+    }
+    throw new FileNotFoundException(entryName);
+  }
+
+  /**
+   * @return the parsed postal codes, null if the zip file was not downloaded
+   */
+  @Nullable
+  StringTable getTable() {
+    return table;
+  }
+}
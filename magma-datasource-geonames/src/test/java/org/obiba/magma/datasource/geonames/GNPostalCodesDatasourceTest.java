@@ -1,42 +1,244 @@
 package org.obiba.magma.datasource.geonames;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VectorSource;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MemoryCache;
 import org.obiba.magma.support.Initialisables;
 import org.obiba.magma.support.VariableEntityBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
 
+@SuppressWarnings("restriction")
 public class GNPostalCodesDatasourceTest {
 
   private static final Logger log = LoggerFactory.getLogger(GNPostalCodesDatasourceTest.class);
 
+  private static final String[] CA_POSTAL_CODES = { //
+      "CA\tH2W\tPlateau Mont-Royal South Central\tQuebec\tQC\t\t\t\t\t45.5176\t-73.5804\t6", //
+      "CA\tH3A\tDowntown Montreal North\tQuebec\tQC\t\t\t\t\t45.5043\t-73.5747\t6", //
+      "CA\tT2P\tCalgary Commercial Core\tAlberta\tAB\t\t\t\t\t51.0486\t-114.0708\t6"};
+
+  private static final String[] FR_POSTAL_CODES = { //
+      "FR\t75001\tParis 01 Louvre\tÎle-de-France\t11\tParis\t75\tParis\t751\t48.8592\t2.3417\t5", //
+      "FR\t13001\tMarseille 01\tProvence-Alpes-Côte d'Azur\t93\tBouches-du-Rhône\t13\tMarseille\t132\t43.2999\t" +
+          "5.3841\t5"};
+
+  private static final String V5K_POSTAL_CODE = "CA\tV5K\tVancouver North Hastings-Sunrise\tBritish Columbia\tBC" +
+      "\t\t\t\t\t49.2807\t-123.0403\t6";
+
+  private HttpServer server;
+
+  private File directory;
+
+  // served files by path under the index
+  private final Map<String, byte[]> files = Maps.newConcurrentMap();
+
   @Before
-  public void before() {
+  public void before() throws IOException {
     new MagmaEngine();
+    directory = Files.createTempDir();
+    files.put("CA.zip", writeZip("CA.txt", CA_POSTAL_CODES));
+    files.put("allCountries.zip", writeZip("allCountries.txt", ObjectArrays.concat(FR_POSTAL_CODES, CA_POSTAL_CODES,
+        String.class)));
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/zip/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] file = files.get(exchange.getRequestURI().getPath().substring("/zip/".length()));
+        if(file == null) {
+          exchange.sendResponseHeaders(404, -1);
+        } else {
+          exchange.sendResponseHeaders(200, file.length);
+          try(OutputStream output = exchange.getResponseBody()) {
+            output.write(file);
+          }
+        }
+        exchange.close();
+      }
+    });
+    server.start();
   }
 
   @After
-  public void after() {
+  public void after() throws IOException {
+    server.stop(0);
+    FileUtils.deleteDirectory(directory);
     MagmaEngine.get().shutdown();
   }
 
   @Test
-  public void createDatasource() {
+  public void test_countries_are_filtered_ignoring_case() {
+    GNPostalCodesDatasourceFactory factory = new GNPostalCodesDatasourceFactory();
+    factory.setName("foo");
+    factory.setCacheDirectory(directory);
+    factory.setCountries(Arrays.asList("ca", "FR", "zz"));
+    GNPostalCodesDatasource datasource = (GNPostalCodesDatasource) factory.create();
+    // the unknown country is skipped
+    assertThat(datasource.getValueTableNames()).containsOnly("CA", "FR");
+  }
+
+  @Test
+  public void test_countries_of_datasource_are_filtered_ignoring_case() {
+    assertThat(newDatasource(ImmutableSet.of("ca", "Fr"), false, 0).getValueTableNames()).containsOnly("CA", "FR");
+    // discovered countries too
+    files.put("", "<a href=\"CA.zip\">CA.zip</a>\n<a href=\"XK.zip\">XK.zip</a>".getBytes(Charsets.UTF_8));
+    assertThat(newDatasource(ImmutableSet.of("ca"), true, 0).getValueTableNames()).containsOnly("CA");
+  }
+
+  @Test
+  public void test_countries_are_discovered() {
+    files.put("", ("<a href=\"allCountries.zip\">allCountries.zip</a>\n<a href=\"CA.zip\">CA.zip</a>\n" +
+        "<a href=\"XK.zip\">XK.zip</a>\n<a href=\"readme.txt\">readme.txt</a>").getBytes(Charsets.UTF_8));
+    assertThat(newDatasource(null, true, 0).getValueTableNames()).containsOnly("CA", "XK");
+    // discovered countries are filtered
+    assertThat(newDatasource(ImmutableSet.of("CA", "FR"), true, 0).getValueTableNames()).containsOnly("CA");
+  }
+
+  @Test
+  public void test_known_countries_are_used_when_index_is_unavailable() {
+    assertThat(newDatasource(null, true, 0).getValueTableNames())
+        .hasSize(GNPostalCodesDatasource.COUNTRIES.values().length);
+  }
+
+  @Test
+  public void test_known_countries_are_used_when_index_lists_no_country() {
+    files.put("", "<html><body>No files</body></html>".getBytes(Charsets.UTF_8));
+    assertThat(newDatasource(null, true, 0).getValueTableNames())
+        .hasSize(GNPostalCodesDatasource.COUNTRIES.values().length);
+  }
+
+  @Test
+  public void test_idle_tables_are_evicted() throws InterruptedException {
+    MemoryCache memoryCache = new MemoryCache();
+    GNPostalCodesDatasource datasource = newDatasource(false, ImmutableSet.of("CA"), false, 1, memoryCache);
+    Initialisables.initialise(datasource);
+    try {
+      ValueTable postalCodes = datasource.getValueTable("CA");
+      assertThat(postalCodes.getVariableEntities()).hasSize(CA_POSTAL_CODES.length);
+      assertThat(memoryCache.getSize()).isPositive();
+
+      Thread.sleep(10);
+      datasource.evictIdleTables();
+      assertThat(memoryCache.getSize()).isZero();
+
+      // loaded again when read
+      Variable place = postalCodes.getVariable("PLACE_NAME");
+      ValueSet vs = postalCodes.getValueSet(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-T2P"));
+      assertThat(postalCodes.getValue(place, vs).toString()).isEqualTo("Calgary Commercial Core");
+    } finally {
+      datasource.dispose();
+    }
+  }
+
+  @Test
+  public void test_values_are_read_as_vector() {
+    GNPostalCodesDatasource datasource = newDatasource(ImmutableSet.of("CA"), false, 0);
+    Initialisables.initialise(datasource);
+    try {
+      ValueTable postalCodes = datasource.getValueTable("CA");
+      VectorSource places = postalCodes.getVariableValueSource("PLACE_NAME").asVectorSource();
+      SortedSet<VariableEntity> entities = new TreeSet<>();
+      entities.add(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-H3A"));
+      entities.add(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-T2P"));
+      entities.add(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-X0X"));
+      List<String> values = Lists.newArrayList();
+      for(Value value : places.getValues(entities)) {
+        values.add(value.isNull() ? null : value.toString());
+      }
+      // in the order of the entities, null if there is no such postal code
+      assertThat(values).containsExactly("Downtown Montreal North", "Calgary Commercial Core", null);
+    } finally {
+      datasource.dispose();
+    }
+  }
+
+  @Test
+  public void test_refresh_with_malformed_country_file() throws IOException {
+    MemoryCache memoryCache = new MemoryCache();
+    GNPostalCodesDatasource datasource = newDatasource(false, ImmutableSet.of("CA"), false, 0, memoryCache);
+    Initialisables.initialise(datasource);
+    try {
+      GNPostalCodesValueTable postalCodes = (GNPostalCodesValueTable) datasource.getValueTable("CA");
+      Variable place = postalCodes.getVariable("PLACE_NAME");
+      ValueSet vs = postalCodes.getValueSet(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-T2P"));
+      GNPostalCodesSnapshot snapshot = postalCodes.getSnapshot();
+
+      // the entries can be streamed, but the zip file has no central directory
+      byte[] zip = writeZip("CA.txt", ObjectArrays.concat(CA_POSTAL_CODES, V5K_POSTAL_CODE));
+      files.put("CA.zip", Arrays.copyOf(zip, zip.length - 22));
+      try {
+        postalCodes.refresh();
+        fail("Malformed country file was refreshed");
+      } catch(MagmaRuntimeException e) {
+        // the previous snapshot is still read
+      }
+      assertThat(postalCodes.getSnapshot()).isSameAs(snapshot);
+      assertThat(snapshot.isRetired()).isFalse();
+
+      // loaded again from the files of the previous snapshot
+      memoryCache.invalidateAll(snapshot);
+      assertThat(snapshot.getZipFile().exists()).isTrue();
+      assertThat(postalCodes.getVariableEntities()).hasSize(CA_POSTAL_CODES.length);
+      assertThat(postalCodes.getValue(place, vs).toString()).isEqualTo("Calgary Commercial Core");
+
+      files.put("CA.zip", zip);
+      assertThat(postalCodes.refresh()).isTrue();
+      assertThat(postalCodes.getVariableEntities()).hasSize(CA_POSTAL_CODES.length + 1);
+      assertThat(snapshot.isRetired()).isTrue();
+      assertThat(snapshot.getZipFile().exists()).isFalse();
+      // the value sets obtained before still read the retired snapshot
+      assertThat(postalCodes.getValue(place, vs).toString()).isEqualTo("Calgary Commercial Core");
+    } finally {
+      datasource.dispose();
+    }
+  }
+
+  @Test
+  public void createDatasource() throws Exception {
     GNPostalCodesDatasource datasource = new GNPostalCodesDatasource("foo");
     Initialisables.initialise(datasource);
     Set<String> tableNames = datasource.getValueTableNames();
@@ -45,12 +247,78 @@ public class GNPostalCodesDatasourceTest {
 
     testCanada(datasource);
 
+    Map<String, ListenableFuture<Integer>> warmUp = datasource.warmUp(4);
+    assertThat(warmUp).hasSize(tableNames.size());
+    Futures.allAsList(warmUp.values()).get();
     for(ValueTable table : datasource.getValueTables()) {
       log.info("Check {}", table.getName());
+      assertThat(warmUp.get(table.getName()).get()).isNotZero();
       assertThat(table.getValueSetCount()).isNotZero();
     }
   }
 
+  @Test
+  public void test_all_countries_table() {
+    GNPostalCodesDatasource datasource = newDatasource(true, ImmutableSet.of("CA", "FR"), false, 0, new MemoryCache());
+    Initialisables.initialise(datasource);
+    assertThat(datasource.getValueTableNames()).containsOnly("CA", "FR", GNAllCountries.TABLE_NAME);
+
+    ValueTable allCountries = datasource.getValueTable(GNAllCountries.TABLE_NAME);
+    assertThat(allCountries.getVariableEntities()).hasSize(CA_POSTAL_CODES.length + FR_POSTAL_CODES.length);
+    ValueSet vs = allCountries.getValueSet(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "FR-75001"));
+    assertThat(allCountries.getValue(allCountries.getVariable("PLACE_NAME"), vs).toString())
+        .isEqualTo("Paris 01 Louvre");
+    assertThat(allCountries.getValue(allCountries.getVariable("STATE"), vs).toString()).isEqualTo("Île-de-France");
+  }
+
+  @Test
+  public void test_all_countries_table_is_indexed_from_cached_copy() {
+    GNPostalCodesDatasource datasource = newDatasource(true, ImmutableSet.of("CA", "FR"), false, 0, new MemoryCache());
+    Initialisables.initialise(datasource);
+    assertThat(datasource.getValueTable(GNAllCountries.TABLE_NAME).getVariableEntities())
+        .hasSize(CA_POSTAL_CODES.length + FR_POSTAL_CODES.length);
+
+    // the cached allCountries.zip is parsed again when its table is gone and it cannot be downloaded
+    server.stop(0);
+    for(File file : listFiles(".table")) {
+      assertThat(file.delete()).isTrue();
+    }
+    datasource = newDatasource(true, ImmutableSet.of("CA", "FR"), false, 0, new MemoryCache());
+    Initialisables.initialise(datasource);
+    ValueTable allCountries = datasource.getValueTable(GNAllCountries.TABLE_NAME);
+    assertThat(allCountries.getVariableEntities()).hasSize(CA_POSTAL_CODES.length + FR_POSTAL_CODES.length);
+    ValueSet vs = allCountries.getValueSet(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-T2P"));
+    assertThat(allCountries.getValue(allCountries.getVariable("COORDINATE"), vs).toString())
+        .isEqualTo("[-114.0708,51.0486]");
+    // the rows written to make the table are deleted
+    assertThat(listFiles(".part")).isEmpty();
+  }
+
+  @Test
+  public void test_country_view_of_all_countries() {
+    MemoryCache memoryCache = new MemoryCache();
+    GNPostalCodesDatasource datasource = newDatasource(true, ImmutableSet.of("CA", "FR"), false, 0, memoryCache);
+    Initialisables.initialise(datasource);
+
+    GNPostalCodesValueTable canada = (GNPostalCodesValueTable) datasource.getValueTable("CA");
+    Set<VariableEntity> entities = canada.getVariableEntities();
+    assertThat(entities).hasSize(CA_POSTAL_CODES.length);
+    assertThat(entities).contains(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-H2W"));
+    assertThat(entities).doesNotContain(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "FR-75001"));
+
+    ValueSet vs = canada.getValueSet(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-H2W"));
+    assertThat(canada.getValue(canada.getVariable("COORDINATE"), vs).toString()).isEqualTo("[-73.5804,45.5176]");
+    assertThat(canada.getValue(canada.getVariable("PLACE_NAME"), vs).toString())
+        .isEqualTo("Plateau Mont-Royal South Central");
+
+    // the spatial index is weighed once built
+    long size = memoryCache.getSize();
+    assertThat(canada.findNearest(-73.57, 45.51, 2))
+        .containsExactly(new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-H3A"),
+            new VariableEntityBean(GNPostalCodesValueTable.ENTITY_TYPE, "CA-H2W"));
+    assertThat(memoryCache.getSize()).isGreaterThan(size);
+  }
+
   private void testCanada(Datasource datasource) {
 
     ValueTable postalCodes = datasource.getValueTable("CA");
@@ -70,4 +338,33 @@ public class GNPostalCodesDatasourceTest {
     assertThat(postalCodes.getValue(province, vs).toString()).isEqualTo("Quebec");
   }
 
+  private GNPostalCodesDatasource newDatasource(Set<String> countries, boolean discoverCountries, long idleTimeout) {
+    return newDatasource(false, countries, discoverCountries, idleTimeout, new MemoryCache());
+  }
+
+  private GNPostalCodesDatasource newDatasource(boolean allCountries, Set<String> countries,
+      boolean discoverCountries, long idleTimeout, MemoryCache memoryCache) {
+    return new GNPostalCodesDatasource("foo", new DownloadCache(directory, 0), allCountries, countries,
+        discoverCountries, idleTimeout, memoryCache, 0, "http://localhost:" + server.getAddress().getPort() + "/zip/");
+  }
+
+  private List<File> listFiles(final String extension) {
+    return Files.fileTreeTraverser().preOrderTraversal(directory).filter(new Predicate<File>() {
+      @Override
+      public boolean apply(File file) {
+        return file.getName().endsWith(extension);
+      }
+    }).toList();
+  }
+
+  private static byte[] writeZip(String entryName, String... lines) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(ZipOutputStream zip = new ZipOutputStream(bytes)) {
+      zip.putNextEntry(new ZipEntry(entryName));
+      zip.write((Joiner.on('\n').join(lines) + "\n").getBytes(Charsets.UTF_8));
+      zip.closeEntry();
+    }
+    return bytes.toByteArray();
+  }
+
 }
@@ -0,0 +1,93 @@
+package org.obiba.magma.datasource.geonames;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class GNSpatialIndexTest {
+
+  private static final String MONTREAL = "[-73.57,45.50]";
+
+  private static final String TORONTO = "[-79.38,43.65]";
+
+  private static final String QUEBEC = "[-71.21,46.81]";
+
+  private static final String VANCOUVER = "[-123.12,49.28]";
+
+  private static final String EAST_OF_ANTIMERIDIAN = "[179.9,-17.0]";
+
+  private static final String WEST_OF_ANTIMERIDIAN = "[-179.9,-17.0]";
+
+  private final GNSpatialIndex index = new GNSpatialIndex(MONTREAL, TORONTO, null, QUEBEC, VANCOUVER, "[bad]",
+      EAST_OF_ANTIMERIDIAN, WEST_OF_ANTIMERIDIAN);
+
+  @Test
+  public void test_rows_without_coordinates_are_not_indexed() {
+    assertThat(index.size()).isEqualTo(6);
+  }
+
+  @Test
+  public void test_find_nearest() {
+    assertThat(index.findNearest(-73.0, 45.8, 2)).isEqualTo(new int[] { 0, 3 });
+    assertThat(index.findNearest(-73.0, 45.8, 10)).isEqualTo(new int[] { 0, 3, 1, 4, 7, 6 });
+    assertThat(index.findNearest(-73.0, 45.8, 0)).isEmpty();
+  }
+
+  @Test
+  public void test_find_within_radius() {
+    // Montreal-Quebec is about 230 km, Montreal-Toronto about 500 km
+    assertThat(index.findWithin(-73.57, 45.50, 300)).isEqualTo(new int[] { 0, 3 });
+    assertThat(index.findWithin(-73.57, 45.50, 600)).isEqualTo(new int[] { 0, 3, 1 });
+    // across the antimeridian
+    assertThat(index.findWithin(179.95, -17.0, 20)).containsOnly(6, 7);
+  }
+
+  @Test
+  public void test_find_in_bounding_box() {
+    assertThat(index.findInBoundingBox(-80, 43, -71, 47)).isEqualTo(new int[] { 0, 1, 3 });
+    assertThat(index.findInBoundingBox(179, -18, -179, -16)).isEqualTo(new int[] { 6, 7 });
+    assertThat(index.findInBoundingBox(0, 0, 10, 10)).isEmpty();
+  }
+
+  @Test
+  public void test_find_nearest_as_exhaustive_search() {
+    Random random = new Random(1);
+    String[] coordinates = new String[2000];
+    double[][] points = new double[coordinates.length][];
+    for(int i = 0; i < coordinates.length; i++) {
+      points[i] = new double[] { random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90 };
+      coordinates[i] = "[" + points[i][0] + "," + points[i][1] + "]";
+    }
+    GNSpatialIndex randomIndex = new GNSpatialIndex(coordinates);
+    for(int query = 0; query < 50; query++) {
+      double longitude = random.nextDouble() * 360 - 180;
+      double latitude = random.nextDouble() * 180 - 90;
+      int nearest = 0;
+      for(int i = 1; i < points.length; i++) {
+        if(GNSpatialIndex.distance(longitude, latitude, points[i][0], points[i][1]) <
+            GNSpatialIndex.distance(longitude, latitude, points[nearest][0], points[nearest][1])) {
+          nearest = i;
+        }
+      }
+      assertThat(randomIndex.findNearest(longitude, latitude, 1)).isEqualTo(new int[] { nearest });
+
+      int[] found = randomIndex.findNearest(longitude, latitude, 10);
+      assertThat(found).hasSize(10);
+      assertThat(found[0]).isEqualTo(nearest);
+      double farthest = 0;
+      for(int row : found) {
+        double distance = GNSpatialIndex.distance(longitude, latitude, points[row][0], points[row][1]);
+        assertThat(distance).isGreaterThanOrEqualTo(farthest);
+        farthest = distance;
+      }
+      // none of the other points is nearer than the farthest found
+      int nearer = 0;
+      for(double[] point : points) {
+        if(GNSpatialIndex.distance(longitude, latitude, point[0], point[1]) <= farthest) nearer++;
+      }
+      assertThat(nearer).isEqualTo(found.length);
+    }
+  }
+}
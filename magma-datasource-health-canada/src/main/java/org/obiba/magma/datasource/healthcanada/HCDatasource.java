@@ -1,20 +1,113 @@
 package org.obiba.magma.datasource.healthcanada;
 
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
 import org.obiba.magma.ValueTable;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MemoryCache;
 import org.obiba.magma.support.AbstractDatasource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class HCDatasource extends AbstractDatasource {
 
+  private static final Logger log = LoggerFactory.getLogger(HCDatasource.class);
+
   public static final String TYPE = "healthcanada";
 
+  private final boolean eager;
+
+  private final DownloadCache downloadCache;
+
+  private final MemoryCache memoryCache;
+
+  private final long refreshInterval;
+
+  private ScheduledExecutorService refresher;
+
   protected HCDatasource(@Nonnull String name) {
+    this(name, false, new DownloadCache());
+  }
+
+  /**
+   * @param name
+   * @param eager if true, the Health Canada files are all loaded at initialisation
+   * @param downloadCache where the Health Canada files are downloaded
+   */
+  protected HCDatasource(@Nonnull String name, boolean eager, DownloadCache downloadCache) {
+    this(name, eager, downloadCache, new MemoryCache());
+  }
+
+  /**
+   * @param name
+   * @param eager if true, the Health Canada files are all loaded at initialisation
+   * @param downloadCache where the Health Canada files are downloaded
+   * @param memoryCache retains the loaded Health Canada files, possibly shared with other datasources
+   */
+  protected HCDatasource(@Nonnull String name, boolean eager, DownloadCache downloadCache, MemoryCache memoryCache) {
+    this(name, eager, downloadCache, memoryCache, 0);
+  }
+
+  /**
+   * @param name
+   * @param eager if true, the Health Canada files are all loaded at initialisation
+   * @param downloadCache where the Health Canada files are downloaded
+   * @param memoryCache retains the loaded Health Canada files, possibly shared with other datasources
+   * @param refreshInterval time in milliseconds between the checks for a newer release of the Health Canada files, 0
+   * to never check
+   */
+  protected HCDatasource(@Nonnull String name, boolean eager, DownloadCache downloadCache, MemoryCache memoryCache,
+      long refreshInterval) {
     super(name, TYPE);
+    this.eager = eager;
+    this.downloadCache = downloadCache;
+    this.memoryCache = memoryCache;
+    this.refreshInterval = refreshInterval;
+  }
+
+  @Override
+  protected void onInitialise() {
+    super.onInitialise();
+    if(refreshInterval > 0) {
+      refresher = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat(getName() + "-refresh").setDaemon(true).build());
+      refresher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          refreshTables();
+        }
+      }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  protected void onDispose() {
+    if(refresher != null) {
+      refresher.shutdownNow();
+    }
+    for(ValueTable table : getValueTables()) {
+      ((HCDrugsValueTable) table).close();
+    }
+    super.onDispose();
+  }
+
+  private void refreshTables() {
+    try {
+      for(ValueTable table : getValueTables()) {
+        ((HCDrugsValueTable) table).refresh();
+      }
+    } catch(RuntimeException e) {
+      // keep the next refreshes scheduled
+      log.warn("Unable to refresh Health Canada Drugs", e);
+    }
   }
 
   @Override
@@ -24,6 +117,6 @@ public class HCDatasource extends AbstractDatasource {
 
   @Override
   protected ValueTable initialiseValueTable(String tableName) {
-    return new HCDrugsValueTable(this);
+    return new HCDrugsValueTable(this, eager, downloadCache, memoryCache);
   }
 }
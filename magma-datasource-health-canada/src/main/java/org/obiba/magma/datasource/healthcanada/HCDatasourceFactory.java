@@ -1,15 +1,101 @@
 package org.obiba.magma.datasource.healthcanada;
 
+import java.io.File;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.obiba.magma.AbstractDatasourceFactory;
 import org.obiba.magma.Datasource;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MemoryCache;
 
 public class HCDatasourceFactory extends AbstractDatasourceFactory{
 
+  private boolean eager;
+
+  private File cacheDirectory = DownloadCache.DEFAULT_DIRECTORY;
+
+  private long cacheTtl = DownloadCache.DEFAULT_TTL;
+
+  @Nullable
+  private MemoryCache memoryCache;
+
+  private long refreshInterval;
+
+  public boolean isEager() {
+    return eager;
+  }
+
+  /**
+   * Load all the Health Canada files in parallel at datasource initialisation, instead of one by one when first read.
+   *
+   * @param eager
+   */
+  public void setEager(boolean eager) {
+    this.eager = eager;
+  }
+
+  public File getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  /**
+   * Directory where the downloaded Health Canada files are kept between restarts.
+   *
+   * @param cacheDirectory
+   */
+  public void setCacheDirectory(File cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  public long getCacheTtl() {
+    return cacheTtl;
+  }
+
+  /**
+   * Time in milliseconds during which the downloaded files are used without checking whether they have changed.
+   *
+   * @param cacheTtl
+   */
+  public void setCacheTtl(long cacheTtl) {
+    this.cacheTtl = cacheTtl;
+  }
+
+  @Nullable
+  public MemoryCache getMemoryCache() {
+    return memoryCache;
+  }
+
+  /**
+   * Cache retaining the loaded Health Canada files, which can be shared with other datasources so that they all fit in
+   * one heap budget. Nothing is evicted if null.
+   *
+   * @param memoryCache
+   */
+  public void setMemoryCache(@Nullable MemoryCache memoryCache) {
+    this.memoryCache = memoryCache;
+  }
+
+  public long getRefreshInterval() {
+    return refreshInterval;
+  }
+
+  /**
+   * Time in milliseconds between the checks for a newer release of the Health Canada files, 0 to never check. A newer
+   * release is loaded in the background and then replaces the one read at once. The server is not checked more often
+   * than the cache time to live.
+   *
+   * @param refreshInterval
+   */
+  public void setRefreshInterval(long refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
   @Nonnull
   @Override
   protected Datasource internalCreate() {
-    return new HCDatasource(getName());
+    return new HCDatasource(getName(), eager, new DownloadCache(cacheDirectory, cacheTtl),
+        memoryCache == null ? new MemoryCache() : memoryCache, refreshInterval);
   }
 }
@@ -0,0 +1,633 @@
+package org.obiba.magma.datasource.healthcanada;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.Value;
+import org.obiba.magma.Variable;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.EntityIndex;
+import org.obiba.magma.datasource.commons.MemoryCache;
+import org.obiba.magma.datasource.commons.SnapshotFile;
+import org.obiba.magma.datasource.commons.StringTable;
+import org.obiba.magma.datasource.commons.TableSnapshot;
+import org.obiba.magma.type.DateTimeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import au.com.bytecode.opencsv.CSVReader;
+import de.schlichtherle.io.ArchiveException;
+import de.schlichtherle.io.File;
+
+import static org.obiba.magma.datasource.healthcanada.HCDrugsValueTable.DRUG_ENTITY_TYPE;
+import static org.obiba.magma.datasource.healthcanada.HCDrugsValueTable.DRUG_FILE;
+import static org.obiba.magma.datasource.healthcanada.HCDrugsValueTable.SOURCE_FILES;
+import static org.obiba.magma.datasource.healthcanada.HCDrugsValueTable.WESTERN_EUROPE;
+
+/**
+ * The data of one download of allfiles.zip: its source files, loaded when first read and retained in the memory cache,
+ * the snapshots of the parsed ones and the drugs for Humans. A table reads a release until it is refreshed with a
+ * newer one.
+ * <p/>
+ * A release reads its own copy of allfiles.zip, kept open so that it can still be read once the copy is deleted, when
+ * the release is retired.
+ */
+class HCDrugsRelease extends TableSnapshot {
+
+  private static final Logger log = LoggerFactory.getLogger(HCDrugsRelease.class);
+
+  private static final String SNAPSHOT_SCHEMA = "healthcanada-drugs-2";
+
+  private final HCDrugsValueTable table;
+
+  // retains the source files, by name
+  private final MemoryCache memoryCache;
+
+  // copy of the downloaded allfiles.zip, not replaced by the next downloads
+  private final java.io.File allFilesZip;
+
+  private final ZipFile zip;
+
+  private final File zsource;
+
+  // identifies the snapshots of the source files
+  private final long allFilesChecksum;
+
+  // made once, so that the ordinals of the drugs do not change when the drug file is loaded again
+  private volatile EntityIndex entities;
+
+  // drug ordinal / value set timestamps
+  private volatile Timestamps[] valueSetTimestamps;
+
+  // source files retained once retired whatever the memory cache evicts, for the value sets still reading it, null
+  // otherwise
+  @Nullable
+  private volatile ConcurrentMap<String, HCDrugsSourceFile> retained;
+
+  /**
+   * @param table
+   * @param version
+   * @param allFilesZip copy of the downloaded allfiles.zip, deleted once the release is retired
+   * @param memoryCache
+   */
+  HCDrugsRelease(HCDrugsValueTable table, long version, java.io.File allFilesZip, MemoryCache memoryCache) {
+    this(table, version, allFilesZip, checksum(allFilesZip), openZip(allFilesZip), memoryCache);
+  }
+
+  private HCDrugsRelease(HCDrugsValueTable table, long version, java.io.File allFilesZip, long allFilesChecksum,
+      ZipFile zip, MemoryCache memoryCache) {
+    super(version, getDrugFileTime(zip));
+    this.table = table;
+    this.memoryCache = memoryCache;
+    this.allFilesZip = allFilesZip;
+    this.allFilesChecksum = allFilesChecksum;
+    this.zip = zip;
+    zsource = new File(allFilesZip);
+  }
+
+  private static long checksum(java.io.File allFilesZip) {
+    try {
+      return SnapshotFile.checksum(allFilesZip);
+    } catch(IOException e) {
+      throw new MagmaRuntimeException("Unable to read Health Canada Drugs files", e);
+    }
+  }
+
+  private static ZipFile openZip(java.io.File allFilesZip) {
+    try {
+      return new ZipFile(allFilesZip);
+    } catch(IOException e) {
+      throw new MagmaRuntimeException("Unable to read Health Canada Drugs files", e);
+    }
+  }
+
+  /**
+   * Read the time of the drug file from the directory of allfiles.zip.
+   *
+   * @param zip closed if it has no drug file
+   * @return
+   */
+  private static long getDrugFileTime(ZipFile zip) {
+    ZipEntry entry = zip.getEntry(DRUG_FILE);
+    if(entry == null) {
+      closeZip(zip);
+      throw new MagmaRuntimeException("Unable to read Health Canada Drugs file: " + DRUG_FILE);
+    }
+    return entry.getTime();
+  }
+
+  private static void closeZip(ZipFile zip) {
+    try {
+      zip.close();
+    } catch(IOException e) {
+      log.warn("Unable to close {}: {}", zip.getName(), e.getMessage());
+    }
+  }
+
+  /**
+   * @return the copy of allfiles.zip read by this release
+   */
+  java.io.File getAllFilesZip() {
+    return allFilesZip;
+  }
+
+  File getFileEntry(String fileName) {
+    return new File(zsource, fileName);
+  }
+
+  private CSVReader getEntryReader(String fileName) throws IOException {
+    ZipEntry entry = zip.getEntry(fileName);
+    if(entry == null) throw new FileNotFoundException(fileName);
+    return new CSVReader(new InputStreamReader(zip.getInputStream(entry), WESTERN_EUROPE));
+  }
+
+  /**
+   * Get the checksum of allfiles.zip, which identifies the release.
+   *
+   * @return
+   */
+  long getChecksum() {
+    return allFilesChecksum;
+  }
+
+  /**
+   * Release the source files from the memory cache and delete the copy of allfiles.zip and its snapshots once the
+   * release is replaced by a newer one. The release retains the loaded source files for the value sets still reading
+   * it, until they are all discarded, and loads the other ones from the copy it still has open.
+   */
+  @Override
+  protected void onRetire() {
+    ConcurrentMap<String, HCDrugsSourceFile> loaded = new ConcurrentHashMap<>();
+    for(String sourceFile : SOURCE_FILES) {
+      HCDrugsSourceFile file = memoryCache.getIfPresent(this, sourceFile);
+      if(file != null) {
+        loaded.put(sourceFile, file);
+      }
+    }
+    retained = loaded;
+    invalidate();
+    deleteFiles();
+  }
+
+  /**
+   * Release the source files retained in the memory cache.
+   */
+  void invalidate() {
+    memoryCache.invalidateAll(this);
+  }
+
+  /**
+   * Release the source files and close allfiles.zip, when the table is disposed.
+   */
+  void close() {
+    invalidate();
+    unmount();
+    closeZip(zip);
+  }
+
+  /**
+   * Close and delete the copy of allfiles.zip and its snapshots, when the release could not be published.
+   */
+  void discard() {
+    close();
+    deleteFiles();
+  }
+
+  private synchronized void deleteFiles() {
+    unmount();
+    deleteFiles(allFilesZip);
+  }
+
+  /**
+   * Delete a copy of allfiles.zip and the snapshots of its source files. On systems where opened files cannot be
+   * deleted, they are deleted on exit.
+   *
+   * @param allFilesZip
+   */
+  static void deleteFiles(java.io.File allFilesZip) {
+    delete(allFilesZip);
+    for(String sourceFile : SOURCE_FILES) {
+      delete(getSnapshotFile(allFilesZip, sourceFile).getFile());
+    }
+  }
+
+  private static void delete(java.io.File file) {
+    if(file.exists() && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * Forget what the zip virtual file system read from allfiles.zip.
+   */
+  private void unmount() {
+    try {
+      File.umount(zsource);
+    } catch(ArchiveException e) {
+      log.warn("Unable to unmount {}: {}", zsource.getAbsolutePath(), e.getMessage());
+    }
+  }
+
+  /**
+   * Get the drugs for Humans, the drug file being loaded in memory if not already done.
+   *
+   * @return
+   */
+  EntityIndex getEntities() {
+    if(entities == null) {
+      getSourceFile(DRUG_FILE);
+    }
+    return entities;
+  }
+
+  /**
+   * Keep the drugs first extracted from the drug file: the drug ordinals of the value sets, and the ones each source
+   * file maps them to, remain valid when the drug file is evicted and loaded again.
+   *
+   * @param drugs
+   */
+  private synchronized void setEntities(EntityIndex drugs) {
+    if(entities == null) {
+      entities = drugs;
+    }
+  }
+
+  /**
+   * Get the lines of a source file by drug code. The data are loaded in memory if not already done, or if they were
+   * evicted from the memory cache: each source file is loaded once, concurrent readers waiting for the same load.
+   *
+   * @param sourceFile
+   * @return
+   */
+  HCDrugsSourceFile getSourceFile(String sourceFile) {
+    HCDrugsSourceFile loaded = memoryCache.getIfPresent(this, sourceFile);
+    ConcurrentMap<String, HCDrugsSourceFile> retainedFiles = retained;
+    if(loaded == null && retainedFiles != null) {
+      loaded = retainedFiles.get(sourceFile);
+    }
+    if(loaded != null) return loaded;
+    return getSourceFile(new SourceFileLoader(sourceFile, Interners.<String>newStrongInterner()));
+  }
+
+  private HCDrugsSourceFile getSourceFile(SourceFileLoader loader) {
+    HCDrugsSourceFile loaded;
+    try {
+      // once retired, the source files are only retained by the release, for the value sets still reading it
+      loaded = isRetired() ? loader.call() : memoryCache.get(this, loader.sourceFile, loader);
+    } catch(ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), MagmaRuntimeException.class);
+      throw new MagmaRuntimeException("Unable to read source file: " + loader.sourceFile, e.getCause());
+    } catch(MagmaRuntimeException e) {
+      throw e;
+    } catch(Exception e) {
+      throw new MagmaRuntimeException("Unable to read source file: " + loader.sourceFile, e);
+    }
+    ConcurrentMap<String, HCDrugsSourceFile> retainedFiles = retained;
+    if(retainedFiles != null) {
+      retainedFiles.putIfAbsent(loader.sourceFile, loaded);
+    }
+    return loaded;
+  }
+
+  /**
+   * Load all the source files in memory at once: the entries of the zip file are read, from the snapshot or parsed, in
+   * parallel.
+   */
+  void loadAllSourceFiles() {
+    log.info("Loading all Health Canada Drugs files ...");
+    ExecutorService executor = Executors
+        .newFixedThreadPool(Math.min(SOURCE_FILES.size(), Runtime.getRuntime().availableProcessors()));
+    try {
+      // the files share the values they repeat, like the drug codes
+      Interner<String> strings = Interners.newStrongInterner();
+      // drug file first, as the other files depend on it
+      getSourceFile(new SourceFileLoader(DRUG_FILE, strings));
+      List<Future<HCDrugsSourceFile>> futures = Lists.newArrayList();
+      for(String sourceFile : SOURCE_FILES.subList(1, SOURCE_FILES.size())) {
+        final SourceFileLoader loader = new SourceFileLoader(sourceFile, strings);
+        futures.add(executor.submit(new Callable<HCDrugsSourceFile>() {
+          @Override
+          public HCDrugsSourceFile call() throws Exception {
+            return getSourceFile(loader);
+          }
+        }));
+      }
+      for(Future<HCDrugsSourceFile> future : futures) {
+        Uninterruptibles.getUninterruptibly(future);
+      }
+    } catch(ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), MagmaRuntimeException.class);
+      throw new MagmaRuntimeException("Unable to read Health Canada Drugs files", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Load the source files parsed while allfiles.zip was downloaded.
+   *
+   * @param parser
+   */
+  void loadStreamedSourceFiles(AllFilesParser parser) {
+    // drug file first, as the other files depend on it
+    for(String sourceFile : SOURCE_FILES) {
+      Map<String, List<String[]>> lines = parser.getLines(sourceFile);
+      if(lines == null) throw new MagmaRuntimeException("Unable to read source file: " + sourceFile);
+      if(DRUG_FILE.equals(sourceFile)) {
+        setEntities(extractDrugs(lines));
+      }
+      HCDrugsSourceFile loaded = table.newSourceFile(sourceFile, retainDrugs(lines));
+      saveSnapshot(sourceFile, loaded);
+      memoryCache.put(this, sourceFile, loaded);
+    }
+  }
+
+  /**
+   * Get the snapshot of a source file of allfiles.zip, saved when it is parsed.
+   *
+   * @param sourceFile
+   * @return
+   */
+  SnapshotFile getSnapshotFile(String sourceFile) {
+    return getSnapshotFile(allFilesZip, sourceFile);
+  }
+
+  private static SnapshotFile getSnapshotFile(java.io.File allFilesZip, String sourceFile) {
+    return SnapshotFile.of(new java.io.File(allFilesZip.getParentFile(), allFilesZip.getName() + "." + sourceFile),
+        SNAPSHOT_SCHEMA);
+  }
+
+  /**
+   * Read a source file from its snapshot, if there is one up to date.
+   *
+   * @param sourceFile
+   * @return null if there is no usable snapshot
+   */
+  @Nullable
+  private HCDrugsSourceFile readSnapshot(String sourceFile) {
+    SnapshotFile snapshot = getSnapshotFile(sourceFile);
+    StringTable stringTable = snapshot.read(allFilesChecksum, sourceFile);
+    if(stringTable == null) return null;
+
+    log.debug("Loading Health Canada Drugs file {} from snapshot: {}", sourceFile,
+        snapshot.getFile().getAbsolutePath());
+    HCDrugsSourceFile loaded = table.newSourceFile(stringTable);
+    if(DRUG_FILE.equals(sourceFile) && entities == null) {
+      setEntities(extractDrugs(loaded));
+    }
+    return loaded;
+  }
+
+  /**
+   * Save the snapshot of a source file once parsed, whether it is retained by the memory cache or not, so that it is
+   * not parsed again once evicted. Not saved, or deleted once saved, if the release was retired meanwhile and its files
+   * deleted.
+   *
+   * @param sourceFile
+   * @param loaded
+   */
+  private void saveSnapshot(String sourceFile, HCDrugsSourceFile loaded) {
+    if(isRetired()) return;
+    SnapshotFile snapshot = getSnapshotFile(sourceFile);
+    try {
+      snapshot.write(allFilesChecksum, ImmutableList.of(loaded.toStringTable()));
+    } catch(IOException e) {
+      log.warn("Unable to write snapshot of Health Canada Drugs file {}: {}", sourceFile, e.getMessage());
+    }
+    if(isRetired()) {
+      delete(snapshot.getFile());
+    }
+  }
+
+  /**
+   * Reads a source file from its snapshot or, if there is none, parses it from allfiles.zip and saves its snapshot.
+   */
+  private class SourceFileLoader implements Callable<HCDrugsSourceFile> {
+
+    private final String sourceFile;
+
+    // discarded once loaded
+    private final Interner<String> strings;
+
+    private SourceFileLoader(String sourceFile, Interner<String> strings) {
+      this.sourceFile = sourceFile;
+      this.strings = strings;
+    }
+
+    @Override
+    public HCDrugsSourceFile call() throws Exception {
+      HCDrugsSourceFile snapshot = readSnapshot(sourceFile);
+      if(snapshot != null) return snapshot;
+
+      Map<String, List<String[]>> lines;
+      try(CSVReader reader = getEntryReader(sourceFile)) {
+        lines = HCDrugsValueTable.readSourceFile(reader, strings);
+      }
+      if(DRUG_FILE.equals(sourceFile) && entities == null) {
+        setEntities(extractDrugs(lines));
+      }
+      HCDrugsSourceFile loaded = table.newSourceFile(sourceFile, retainDrugs(lines));
+      saveSnapshot(sourceFile, loaded);
+      return loaded;
+    }
+  }
+
+  /**
+   * Reads the lines of the source files of allfiles.zip while it is downloaded.
+   */
+  static class AllFilesParser implements DownloadCache.StreamHandler {
+
+    // source file name / lines
+    private final Map<String, Map<String, List<String[]>>> sourceFileLines = Maps.newHashMap();
+
+    private boolean parsed;
+
+    @Override
+    public void handle(InputStream input) throws IOException {
+      log.info("Loading all Health Canada Drugs files while downloading ...");
+      Interner<String> strings = Interners.newStrongInterner();
+      ZipInputStream zip = new ZipInputStream(input);
+      ZipEntry entry;
+      while((entry = zip.getNextEntry()) != null) {
+        if(SOURCE_FILES.contains(entry.getName())) {
+          // not closed, the stream belongs to the download
+          CSVReader reader = new CSVReader(new InputStreamReader(zip, WESTERN_EUROPE));
+          sourceFileLines.put(entry.getName(), HCDrugsValueTable.readSourceFile(reader, strings));
+        }
+      }
+      parsed = true;
+    }
+
+    boolean isParsed() {
+      return parsed;
+    }
+
+    @Nullable
+    Map<String, List<String[]>> getLines(String sourceFile) {
+      return sourceFileLines.get(sourceFile);
+    }
+  }
+
+  /**
+   * Extract the drugs for Humans from the drug file lines.
+   *
+   * @param drugs
+   * @return
+   */
+  private EntityIndex extractDrugs(Map<String, List<String[]>> drugs) {
+    List<String> drugCodes = Lists.newArrayList();
+    for(Map.Entry<String, List<String[]>> entry : drugs.entrySet()) {
+      if("Human".equals(entry.getValue().get(0)[2])) {
+        drugCodes.add(entry.getKey());
+      }
+    }
+    return new EntityIndex(DRUG_ENTITY_TYPE, drugCodes.toArray(new String[drugCodes.size()]));
+  }
+
+  /**
+   * Extract the drugs for Humans from the drug file, using its categorical CLASS column.
+   *
+   * @param drugs
+   * @return
+   */
+  private EntityIndex extractDrugs(HCDrugsSourceFile drugs) {
+    List<String> drugCodes = Lists.newArrayList();
+    String previous = null;
+    // the lines of a drug are contiguous
+    for(int line : drugs.getColumn(2).rowsOf("Human")) {
+      String drugCode = drugs.getDrugCodeOfLine(line);
+      if(!drugCode.equals(previous)) {
+        drugCodes.add(drugCode);
+        previous = drugCode;
+      }
+    }
+    return new EntityIndex(DRUG_ENTITY_TYPE, drugCodes.toArray(new String[drugCodes.size()]));
+  }
+
+  private Map<String, List<String[]>> retainDrugs(Map<String, List<String[]>> lines) {
+    EntityIndex drugs = getEntities();
+    Iterator<String> codes = lines.keySet().iterator();
+    while(codes.hasNext()) {
+      if(!drugs.containsIdentifier(codes.next())) {
+        codes.remove();
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Get the timestamps of the release: its last update is the date of the drug file of allfiles.zip.
+   *
+   * @return
+   */
+  Timestamps getTimestamps() {
+    return new HCDrugsTimestamps(DateTimeType.get().nullValue(),
+        DateTimeType.get().valueOf(new Date(getLastModified())));
+  }
+
+  /**
+   * Get the timestamps of the value set of a drug. They are computed once for all the drugs, from the dates parsed when
+   * the source files were loaded.
+   *
+   * @param drug ordinal of the drug in the release, -1 if it is not one of its drugs
+   * @return
+   */
+  Timestamps getValueSetTimestamps(int drug) {
+    Timestamps[] timestamps = valueSetTimestamps;
+    if(timestamps == null) {
+      // concurrent callers compute the same timestamps
+      timestamps = computeValueSetTimestamps();
+      valueSetTimestamps = timestamps;
+    }
+    return drug == -1 ? getTimestamps() : timestamps[drug];
+  }
+
+  /**
+   * The last update of a drug is its LAST_UPDATE_DATE (or the date of the drug file if unknown) and its creation is the
+   * earliest of its last update and HISTORY_DATEs.
+   *
+   * @return
+   */
+  private Timestamps[] computeValueSetTimestamps() {
+    Variable lastUpdateVariable = table.getVariable("LAST_UPDATE_DATE");
+    HCDrugsSourceFile drugs = getSourceFile(lastUpdateVariable.getAttributeStringValue("file"));
+    int lastUpdateColumn = Integer.parseInt(lastUpdateVariable.getAttributeStringValue("column"));
+    Variable historyVariable = table.getVariable("HISTORY_DATE");
+    HCDrugsSourceFile statuses = getSourceFile(historyVariable.getAttributeStringValue("file"));
+    int historyColumn = Integer.parseInt(historyVariable.getAttributeStringValue("column"));
+    Date drugFileDate = new Date(getLastModified());
+    Value drugFileLastUpdate = DateTimeType.get().valueOf(drugFileDate);
+
+    EntityIndex entities = getEntities();
+    Timestamps[] timestamps = new Timestamps[entities.size()];
+    for(int drug = 0; drug < timestamps.length; drug++) {
+      String drugCode = entities.getIdentifier(drug);
+      Date updated = drugs.getDate(drugs.ordinalOf(drugCode), lastUpdateColumn);
+      Value lastUpdate = updated == null ? drugFileLastUpdate : HCDrugsValueTable.getDateValue(updated);
+      Date created = updated == null ? drugFileDate : updated;
+      boolean history = false;
+      for(Date date : statuses.getDates(statuses.ordinalOf(drugCode), historyColumn)) {
+        if(date != null && date.before(created)) {
+          created = date;
+          history = true;
+        }
+      }
+      timestamps[drug] = new HCDrugsTimestamps(history ? HCDrugsValueTable.getDateValue(created) : lastUpdate,
+          lastUpdate);
+    }
+    return timestamps;
+  }
+
+  private static final class HCDrugsTimestamps implements Timestamps {
+
+    private final Value created;
+
+    private final Value lastUpdate;
+
+    private HCDrugsTimestamps(Value created, Value lastUpdate) {
+      this.created = created;
+      this.lastUpdate = lastUpdate;
+    }
+
+    @Nonnull
+    @Override
+    public Value getLastUpdate() {
+      return lastUpdate;
+    }
+
+    @Nonnull
+    @Override
+    public Value getCreated() {
+      return created;
+    }
+  }
+}
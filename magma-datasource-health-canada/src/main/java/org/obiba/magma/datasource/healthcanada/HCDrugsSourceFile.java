@@ -0,0 +1,417 @@
+package org.obiba.magma.datasource.healthcanada;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.datasource.commons.EntityIndex;
+import org.obiba.magma.datasource.commons.MemoryCache;
+import org.obiba.magma.datasource.commons.StringColumn;
+import org.obiba.magma.datasource.commons.StringTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The lines of a Health Canada Drugs source file, stored by column. The lines of a same drug (one per ingredient,
+ * package, status...) are contiguous, so that the values of a drug are read in a row range. Categorical columns and
+ * columns with few distinct values are dictionary-encoded. Date columns are parsed once, when the file is loaded, and
+ * so are the inverted indexes of the indexed columns.
+ */
+final class HCDrugsSourceFile implements MemoryCache.Sized {
+
+  private static final Logger log = LoggerFactory.getLogger(HCDrugsSourceFile.class);
+
+  private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      // month abbreviations are in English
+      return new SimpleDateFormat("dd-MMM-yyyy", Locale.ENGLISH);
+    }
+  };
+
+  private static final long NULL_DATE = Long.MIN_VALUE;
+
+  private final String name;
+
+  private final String[] drugCodes;
+
+  // drug ordinal / first line, plus the line count at the end
+  private final int[] offsets;
+
+  // drug code / drug ordinal
+  private final EntityIndex drugs;
+
+  // column index / line / value
+  private final StringColumn[] columns;
+
+  // column index / line / time, null for the columns which are not dates
+  private final long[][] dates;
+
+  // column index / index key / drug ordinals, for the indexed columns
+  private final Map<Integer, Map<String, int[]>> indexes;
+
+  // estimated bytes
+  private final long size;
+
+  // drug ordinals of the entities of a release, made when first read
+  @Nullable
+  private volatile DrugOrdinals drugOrdinals;
+
+  /**
+   * @param name
+   * @param lines lines by drug code
+   * @param categoricalColumns indexes of the columns which values are categories
+   * @param dateColumns indexes of the columns which values are dates
+   * @param indexedColumns indexes of the columns in which drugs are looked up by value
+   */
+  HCDrugsSourceFile(String name, Map<String, List<String[]>> lines, Set<Integer> categoricalColumns,
+      Set<Integer> dateColumns, Set<Integer> indexedColumns) {
+    this.name = name;
+    int width = 0;
+    int lineCount = 0;
+    for(List<String[]> drugLines : lines.values()) {
+      for(String[] line : drugLines) {
+        width = Math.max(width, line.length);
+      }
+      lineCount += drugLines.size();
+    }
+    drugCodes = new String[lines.size()];
+    offsets = new int[lines.size() + 1];
+    String[][] values = new String[width][lineCount];
+    int drug = 0;
+    int row = 0;
+    for(Map.Entry<String, List<String[]>> entry : lines.entrySet()) {
+      drugCodes[drug] = entry.getKey();
+      offsets[drug] = row;
+      for(String[] line : entry.getValue()) {
+        for(int i = 0; i < line.length; i++) {
+          values[i][row] = line[i];
+        }
+        row++;
+      }
+      drug++;
+    }
+    offsets[drug] = row;
+    drugs = new EntityIndex(HCDrugsValueTable.DRUG_ENTITY_TYPE, drugCodes);
+    columns = toColumns(values, categoricalColumns);
+    dates = parseDates(values, dateColumns);
+    indexes = indexColumns(indexedColumns);
+    size = estimateSize();
+  }
+
+  /**
+   * @param table as saved in a snapshot, one row per line
+   * @param categoricalColumns
+   * @param dateColumns
+   * @param indexedColumns
+   */
+  HCDrugsSourceFile(StringTable table, Set<Integer> categoricalColumns, Set<Integer> dateColumns,
+      Set<Integer> indexedColumns) {
+    this(table.getName(), groupLines(table), categoricalColumns, dateColumns, indexedColumns);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  @Override
+  public long getSize() {
+    return size;
+  }
+
+  int size() {
+    return drugCodes.length;
+  }
+
+  String getDrugCode(int drug) {
+    return drugCodes[drug];
+  }
+
+  /**
+   * Get the drug code of a line.
+   *
+   * @param line
+   * @return
+   */
+  String getDrugCodeOfLine(int line) {
+    // each drug has at least one line, so that offsets are distinct
+    int drug = Arrays.binarySearch(offsets, 0, drugCodes.length, line);
+    return drugCodes[drug < 0 ? -drug - 2 : drug];
+  }
+
+  boolean contains(String drugCode) {
+    return drugs.containsIdentifier(drugCode);
+  }
+
+  /**
+   * @param drugCode
+   * @return the ordinal of the drug in this file, -1 if it has no line
+   */
+  int ordinalOf(String drugCode) {
+    return drugs.ordinalOf(drugCode);
+  }
+
+  /**
+   * Get the ordinals in this file of the drugs of a release, by their ordinal in the release, so that the value sets
+   * of the release read their lines by index. They are made once for the entities of the file's release, and again
+   * if read for other entities.
+   *
+   * @param entities
+   * @return drug ordinals in this file, -1 for the drugs which have no line
+   */
+  int[] getDrugOrdinals(EntityIndex entities) {
+    DrugOrdinals ordinals = drugOrdinals;
+    if(ordinals == null || ordinals.entities != entities) {
+      // concurrent callers make the same ordinals
+      ordinals = new DrugOrdinals(entities);
+      drugOrdinals = ordinals;
+    }
+    return ordinals.ordinals;
+  }
+
+  StringColumn getColumn(int column) {
+    return columns[column];
+  }
+
+  /**
+   * Get the value of a column in the first line of a drug.
+   *
+   * @param drug ordinal of the drug, -1 if it has no line
+   * @param column
+   * @return null if the drug has no line or no value in this column
+   */
+  @Nullable
+  String getValue(int drug, int column) {
+    if(drug == -1 || column >= columns.length) return null;
+    return columns[column].get(offsets[drug]);
+  }
+
+  /**
+   * Get the values of a column in all the lines of a drug.
+   *
+   * @param drug ordinal of the drug, -1 if it has no line
+   * @param column
+   * @return empty if the drug has no line
+   */
+  List<String> getValues(int drug, int column) {
+    if(drug == -1) return ImmutableList.of();
+    int from = offsets[drug];
+    int to = offsets[drug + 1];
+    List<String> values = Lists.newArrayListWithCapacity(to - from);
+    for(int row = from; row < to; row++) {
+      values.add(column < columns.length ? columns[column].get(row) : null);
+    }
+    return values;
+  }
+
+  boolean isIndexedColumn(int column) {
+    return indexes.containsKey(column);
+  }
+
+  /**
+   * Find the drugs having a value in an indexed column.
+   *
+   * @param column
+   * @param value compared ignoring case and runs of whitespaces
+   * @return drug codes
+   */
+  List<String> findDrugCodes(int column, String value) {
+    int[] found = indexes.get(column).get(toIndexKey(value));
+    if(found == null) return ImmutableList.of();
+    List<String> codes = Lists.newArrayListWithCapacity(found.length);
+    for(int drug : found) {
+      codes.add(drugCodes[drug]);
+    }
+    return codes;
+  }
+
+  boolean isDateColumn(int column) {
+    return column < dates.length && dates[column] != null;
+  }
+
+  /**
+   * Get the date of a date column in the first line of a drug.
+   *
+   * @param drug ordinal of the drug, -1 if it has no line
+   * @param column
+   * @return null if the drug has no line or no valid date in this column, or if the file has no such date column
+   */
+  @Nullable
+  Date getDate(int drug, int column) {
+    return drug == -1 || !isDateColumn(column) ? null : toDate(dates[column][offsets[drug]]);
+  }
+
+  /**
+   * Get the dates of a date column in all the lines of a drug.
+   *
+   * @param drug ordinal of the drug, -1 if it has no line
+   * @param column
+   * @return empty if the drug has no line, or if the file has no such date column
+   */
+  List<Date> getDates(int drug, int column) {
+    if(drug == -1 || !isDateColumn(column)) return ImmutableList.of();
+    int from = offsets[drug];
+    int to = offsets[drug + 1];
+    List<Date> values = Lists.newArrayListWithCapacity(to - from);
+    for(int row = from; row < to; row++) {
+      values.add(toDate(dates[column][row]));
+    }
+    return values;
+  }
+
+  StringTable toStringTable() {
+    String[] keys = new String[offsets[drugCodes.length]];
+    for(int drug = 0; drug < drugCodes.length; drug++) {
+      Arrays.fill(keys, offsets[drug], offsets[drug + 1], drugCodes[drug]);
+    }
+    String[][] values = new String[columns.length][];
+    for(int i = 0; i < columns.length; i++) {
+      values[i] = columns[i].toArray();
+    }
+    return new StringTable(name, keys, values);
+  }
+
+  private long estimateSize() {
+    // drug codes and their ordinals, offsets, at least as many drug ordinals of the release entities
+    long estimate = drugs.getSize() + 16 + 4L * offsets.length + 16 + 4L * drugCodes.length;
+    for(StringColumn column : columns) {
+      estimate += column.getSize();
+    }
+    for(long[] column : dates) {
+      estimate += column == null ? 4 : 16 + 8L * column.length;
+    }
+    for(Map<String, int[]> index : indexes.values()) {
+      // keys are the column values
+      for(int[] drugs : index.values()) {
+        estimate += 48 + 16 + 4L * drugs.length;
+      }
+    }
+    return estimate;
+  }
+
+  /**
+   * Build the inverted index of each indexed column: the distinct ordinals of the drugs having each value.
+   *
+   * @param indexedColumns
+   * @return
+   */
+  private Map<Integer, Map<String, int[]>> indexColumns(Set<Integer> indexedColumns) {
+    ImmutableMap.Builder<Integer, Map<String, int[]>> builder = ImmutableMap.builder();
+    for(int column : indexedColumns) {
+      if(column >= columns.length) continue;
+      Map<String, int[]> drugsByKey = Maps.newHashMap();
+      for(int drug = 0; drug < drugCodes.length; drug++) {
+        for(int row = offsets[drug]; row < offsets[drug + 1]; row++) {
+          String value = columns[column].get(row);
+          if(value != null && !value.isEmpty()) {
+            addDrug(drugsByKey, toIndexKey(value), drug);
+          }
+        }
+      }
+      ImmutableMap.Builder<String, int[]> index = ImmutableMap.builder();
+      for(Map.Entry<String, int[]> entry : drugsByKey.entrySet()) {
+        // the first slot holds the drug count
+        int[] drugs = entry.getValue();
+        index.put(entry.getKey(), Arrays.copyOfRange(drugs, 1, drugs[0] + 1));
+      }
+      builder.put(column, index.build());
+    }
+    return builder.build();
+  }
+
+  private static void addDrug(Map<String, int[]> drugsByKey, String key, int drug) {
+    int[] drugs = drugsByKey.get(key);
+    if(drugs == null) {
+      drugs = new int[4];
+      drugsByKey.put(key, drugs);
+    } else if(drugs[drugs[0]] == drug) {
+      // drug already added from one of its previous lines
+      return;
+    } else if(drugs[0] == drugs.length - 1) {
+      drugs = Arrays.copyOf(drugs, drugs.length * 2);
+      drugsByKey.put(key, drugs);
+    }
+    drugs[++drugs[0]] = drug;
+  }
+
+  private static String toIndexKey(String value) {
+    return HCDrugsValueTable.normalize(value).toUpperCase(Locale.ENGLISH);
+  }
+
+  private static Map<String, List<String[]>> groupLines(StringTable table) {
+    Map<String, List<String[]>> lines = Maps.newLinkedHashMap();
+    for(int i = 0; i < table.getRowCount(); i++) {
+      List<String[]> drugLines = lines.get(table.getKey(i));
+      if(drugLines == null) {
+        drugLines = Lists.newArrayListWithCapacity(1);
+        lines.put(table.getKey(i), drugLines);
+      }
+      drugLines.add(table.getRow(i));
+    }
+    return lines;
+  }
+
+  private static long[][] parseDates(String[][] values, Set<Integer> dateColumns) {
+    long[][] dates = new long[values.length][];
+    for(int column : dateColumns) {
+      if(column < values.length) {
+        dates[column] = new long[values[column].length];
+        for(int row = 0; row < values[column].length; row++) {
+          dates[column][row] = parseDate(values[column][row]);
+        }
+      }
+    }
+    return dates;
+  }
+
+  private static long parseDate(@Nullable String value) {
+    if(value == null || value.isEmpty()) return NULL_DATE;
+    try {
+      return dateFormat.get().parse(value).getTime();
+    } catch(ParseException e) {
+      log.warn("ParseException", e);
+      return NULL_DATE;
+    }
+  }
+
+  @Nullable
+  private static Date toDate(long time) {
+    return time == NULL_DATE ? null : new Date(time);
+  }
+
+  private static StringColumn[] toColumns(String[][] values, Set<Integer> categoricalColumns) {
+    StringColumn[] columns = new StringColumn[values.length];
+    for(int i = 0; i < values.length; i++) {
+      columns[i] = StringColumn.of(categoricalColumns.contains(i), values[i]);
+    }
+    return columns;
+  }
+
+  private final class DrugOrdinals {
+
+    private final EntityIndex entities;
+
+    // entity ordinal / drug ordinal
+    private final int[] ordinals;
+
+    private DrugOrdinals(EntityIndex entities) {
+      this.entities = entities;
+      ordinals = new int[entities.size()];
+      for(int i = 0; i < ordinals.length; i++) {
+        ordinals[i] = ordinalOf(entities.getIdentifier(i));
+      }
+    }
+  }
+}
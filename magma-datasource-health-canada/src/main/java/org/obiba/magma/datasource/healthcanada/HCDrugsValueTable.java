@@ -1,24 +1,19 @@
 package org.obiba.magma.datasource.healthcanada;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.nio.charset.Charset;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.Datasource;
-import org.obiba.magma.MagmaDate;
 import org.obiba.magma.MagmaRuntimeException;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.Timestamps;
@@ -28,247 +23,591 @@ import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueType;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MemoryCache;
+import org.obiba.magma.datasource.commons.StringTable;
+import org.obiba.magma.datasource.commons.TableSnapshot;
 import org.obiba.magma.support.AbstractValueTable;
 import org.obiba.magma.support.VariableEntityBean;
-import org.obiba.magma.type.DateTimeType;
 import org.obiba.magma.type.DateType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import au.com.bytecode.opencsv.CSVReader;
 import de.schlichtherle.io.File;
-import de.schlichtherle.io.FileInputStream;
 
 public class HCDrugsValueTable extends AbstractValueTable {
 
   private static final Logger log = LoggerFactory.getLogger(HCDrugsValueTable.class);
 
-  private static final SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy");
-
   static final String DRUG_ENTITY_TYPE = "Drug";
 
   static final String ALL_FILES_ZIP_URL
       = "http://www.hc-sc.gc.ca/dhp-mps/alt_formats/zip/prodpharma/databasdon/allfiles.zip";
 
-  private static final Charset WESTERN_EUROPE = Charsets.ISO_8859_1;
+  static final Charset WESTERN_EUROPE = Charsets.ISO_8859_1;
+
+  static final String DRUG_FILE = "drug.txt";
+
+  static final List<String> SOURCE_FILES = ImmutableList
+      .of(DRUG_FILE, "ingred.txt", "form.txt", "status.txt", "package.txt", "pharm.txt", "route.txt", "schedule.txt",
+          "ther.txt", "comp.txt");
+
+  private static final Predicate<Variable> CATEGORICAL = new Predicate<Variable>() {
+    @Override
+    public boolean apply(Variable variable) {
+      return variable.hasCategories();
+    }
+  };
+
+  private static final Predicate<Variable> DATE = new Predicate<Variable>() {
+    @Override
+    public boolean apply(Variable variable) {
+      return DateType.get().equals(variable.getValueType());
+    }
+  };
+
+  /**
+   * Variables by which drugs can be looked up.
+   */
+  public static final Set<String> INDEXED_VARIABLES = ImmutableSet
+      .of("DRUG_IDENTIFICATION_NUMBER", "BRAND_NAME", "ACTIVE_INGREDIENT_CODE", "INGREDIENT", "TC_ATC_NUMBER", "TC_ATC",
+          "COMPANY_CODE", "COMPANY_NAME");
+
+  private static final Predicate<Variable> INDEXED = new Predicate<Variable>() {
+    @Override
+    public boolean apply(Variable variable) {
+      return INDEXED_VARIABLES.contains(variable.getName());
+    }
+  };
+
+  private final boolean eager;
+
+  private final DownloadCache downloadCache;
+
+  private final String allFilesZipUrl;
 
-  private static final int BUFFER_SIZE = 153600;
+  // retains the source files, by release and name
+  private final MemoryCache memoryCache;
 
-  private File zsource;
+  // the data read, swapped at once by a refresh
+  private final TableSnapshot.Reference<HCDrugsRelease> releases = new TableSnapshot.Reference<>();
 
-  // source file name / entity id / value set
-  private final Map<String, Map<String, String[]>> valueSets = Maps.newHashMap();
+  // downloads the first release when first read
+  private final Supplier<HCDrugsRelease> releaseLoader = new Supplier<HCDrugsRelease>() {
+    @Override
+    public HCDrugsRelease get() {
+      return downloadRelease(1, null);
+    }
+  };
 
   public HCDrugsValueTable(Datasource datasource) {
+    this(datasource, false, new DownloadCache());
+  }
+
+  /**
+   * @param datasource
+   * @param eager if true, all the source files are loaded at initialisation instead of when first read
+   * @param downloadCache where allfiles.zip is downloaded
+   */
+  public HCDrugsValueTable(Datasource datasource, boolean eager, DownloadCache downloadCache) {
+    this(datasource, eager, downloadCache, new MemoryCache());
+  }
+
+  /**
+   * @param datasource
+   * @param eager if true, all the source files are loaded at initialisation instead of when first read
+   * @param downloadCache where allfiles.zip is downloaded
+   * @param memoryCache retains the loaded source files, which are read again from their snapshots once evicted
+   */
+  public HCDrugsValueTable(Datasource datasource, boolean eager, DownloadCache downloadCache,
+      MemoryCache memoryCache) {
+    this(datasource, eager, downloadCache, memoryCache, ALL_FILES_ZIP_URL);
+  }
+
+  /**
+   * @param datasource
+   * @param eager if true, all the source files are loaded at initialisation instead of when first read
+   * @param downloadCache where allfiles.zip is downloaded
+   * @param memoryCache retains the loaded source files, which are read again from their snapshots once evicted
+   * @param allFilesZipUrl where allfiles.zip is downloaded from
+   */
+  HCDrugsValueTable(Datasource datasource, boolean eager, DownloadCache downloadCache, MemoryCache memoryCache,
+      String allFilesZipUrl) {
     super(datasource, "Drugs");
+    this.eager = eager;
+    this.downloadCache = downloadCache;
+    this.memoryCache = memoryCache;
+    this.allFilesZipUrl = allFilesZipUrl;
     setVariableEntityProvider(new HCDrugsVariableEntityProvider(this));
-    addVariableValueSources(new HCDrugsVariableValueSourceFactory());
+    addVariableValueSources(new HCDrugsVariableValueSourceFactory(this));
   }
 
   @Override
-  public ValueSet getValueSet(VariableEntity entity) throws NoSuchValueSetException {
-    return new HCDrugsValueSet(entity);
+  public void initialise() {
+    super.initialise();
+    if(eager) {
+      final HCDrugsRelease.AllFilesParser parser = new HCDrugsRelease.AllFilesParser();
+      HCDrugsRelease release = releases.get(new Supplier<HCDrugsRelease>() {
+        @Override
+        public HCDrugsRelease get() {
+          return downloadRelease(1, parser);
+        }
+      });
+      if(!parser.isParsed()) {
+        release.loadAllSourceFiles();
+      }
+    }
   }
 
   @Override
-  public Timestamps getTimestamps() {
-    return new Timestamps() {
-
-      private File drugEntry;
+  public ValueSet getValueSet(VariableEntity entity) throws NoSuchValueSetException {
+    return new HCDrugsValueSet(getRelease(), entity);
+  }
 
-      @Nonnull
+  /**
+   * Iterate over the value sets of all the drugs of the current release with a single value set, moved from drug to
+   * drug, which reads the source files by index: each value set is only valid until the next one is read. For reading
+   * all the variables of all the drugs without making a value set per drug.
+   *
+   * @return
+   */
+  public Iterable<ValueSet> scanValueSets() {
+    final HCDrugsRelease release = getRelease();
+    return new Iterable<ValueSet>() {
       @Override
-      public Value getLastUpdate() {
-        return DateTimeType.get().valueOf(new Date(getDrugEntry().lastModified()));
+      public Iterator<ValueSet> iterator() {
+        final HCDrugsValueSet cursor = new HCDrugsValueSet(release);
+        final int count = release.getEntities().size();
+        return new AbstractIterator<ValueSet>() {
+          @Override
+          protected ValueSet computeNext() {
+            return cursor.drug + 1 < count ? cursor.moveTo(cursor.drug + 1) : endOfData();
+          }
+        };
       }
+    };
+  }
 
-      @Nonnull
-      @Override
-      public Value getCreated() {
-        return DateTimeType.get().nullValue();
-      }
+  /**
+   * The last update of the table is the one of the release currently read.
+   *
+   * @return
+   */
+  @Override
+  public Timestamps getTimestamps() {
+    return getRelease().getTimestamps();
+  }
 
-      private File getDrugEntry() {
-        if(drugEntry == null) {
-          drugEntry = getFileEntry("drug.txt");
-        }
-        return drugEntry;
-      }
-    };
+  /**
+   * Get the release of allfiles.zip currently read, which is downloaded when first read.
+   *
+   * @return
+   */
+  HCDrugsRelease getRelease() {
+    return releases.get(releaseLoader);
   }
 
-  private void downloadLatestAllFiles() throws IOException {
-    log.info("Download from: {} ...", ALL_FILES_ZIP_URL);
+  /**
+   * Download allfiles.zip, if it has changed since it was last downloaded, and make a release of it.
+   *
+   * @param version
+   * @param parser if not null, parses the source files while allfiles.zip is downloaded
+   * @return
+   */
+  private HCDrugsRelease downloadRelease(long version, @Nullable HCDrugsRelease.AllFilesParser parser) {
+    java.io.File allFilesZip = downloadAllFiles(parser);
+    // left by a previous run
+    downloadCache.discardCopies(downloadCache.getFile(allFilesZipUrl), allFilesZip);
+    HCDrugsRelease release = new HCDrugsRelease(this, version, allFilesZip, memoryCache);
+    if(parser != null && parser.isParsed()) {
+      release.loadStreamedSourceFiles(parser);
+    }
+    return release;
+  }
 
-    // Get a connection to the URL and start up a buffered reader.
-    URL url = new URL(ALL_FILES_ZIP_URL);
-    url.openConnection();
+  /**
+   * Download allfiles.zip, if it has changed since it was last downloaded.
+   *
+   * @param parser if not null, parses the source files while allfiles.zip is downloaded
+   * @return a copy of allfiles.zip, which the next downloads do not replace
+   */
+  private java.io.File downloadAllFiles(@Nullable HCDrugsRelease.AllFilesParser parser) {
+    try {
+      return downloadCache.keep(
+          parser == null ? downloadCache.get(allFilesZipUrl) : downloadCache.stream(allFilesZipUrl, parser));
+    } catch(IOException e) {
+      throw new MagmaRuntimeException("Unable to download Health Canada Drugs from: " + allFilesZipUrl, e);
+    }
+  }
 
-    // Setup a buffered file writer to write out what we read from the website.
-    java.io.File allfiles = java.io.File.createTempFile("healthcanada-drugs-", ".zip");
-    allfiles.deleteOnExit();
+  /**
+   * Check whether allfiles.zip has changed and, if so, load the newer release and publish it at once. The value sets
+   * obtained before keep reading the release they were obtained from, which reads its own copy of allfiles.zip, so
+   * that readers are not paused by the reload. If the newer release cannot be loaded, the current one is still read
+   * and the newer one is loaded again by the next refresh.
+   *
+   * @return the drugs added, removed or which LAST_UPDATE_DATE has changed
+   */
+  public synchronized Set<VariableEntity> refresh() {
+    HCDrugsRelease previous = releases.peek();
+    // nothing was read yet, the latest release will be downloaded when first read
+    if(previous == null) return ImmutableSet.of();
+
+    HCDrugsRelease.AllFilesParser parser = new HCDrugsRelease.AllFilesParser();
+    java.io.File allFilesZip = downloadAllFiles(parser);
+    // unchanged: the copies are named after their checksum
+    if(allFilesZip.equals(previous.getAllFilesZip())) return ImmutableSet.of();
+
+    HCDrugsRelease next = null;
+    boolean published = false;
+    try {
+      next = new HCDrugsRelease(this, previous.getVersion() + 1, allFilesZip, memoryCache);
+      // otherwise downloaded by a refresh that failed, and loaded when first read
+      if(parser.isParsed()) {
+        next.loadStreamedSourceFiles(parser);
+      }
 
-    try(InputStream reader = url.openStream();
-        FileOutputStream writer = new FileOutputStream(allfiles)) {
-      byte[] buffer = new byte[BUFFER_SIZE];
-      int bytesRead = 0;
+      Set<VariableEntity> changed = diff(previous, next);
+      published = releases.publish(previous, next);
+      log.info("Refreshed Health Canada Drugs to release {}: {} drugs changed", next.getVersion(), changed.size());
+      return changed;
+    } finally {
+      if(!published) {
+        if(next == null) {
+          HCDrugsRelease.deleteFiles(allFilesZip);
+        } else {
+          next.discard();
+        }
+      }
+    }
+  }
 
-      while((bytesRead = reader.read(buffer)) > 0) {
-        writer.write(buffer, 0, bytesRead);
-        buffer = new byte[BUFFER_SIZE];
+  /**
+   * Compare the drugs of two releases.
+   *
+   * @param previous
+   * @param next
+   * @return the drugs added, removed or which LAST_UPDATE_DATE has changed
+   */
+  private Set<VariableEntity> diff(HCDrugsRelease previous, HCDrugsRelease next) {
+    Variable lastUpdateVariable = getVariable("LAST_UPDATE_DATE");
+    String sourceFile = lastUpdateVariable.getAttributeStringValue("file");
+    int column = Integer.parseInt(lastUpdateVariable.getAttributeStringValue("column"));
+    HCDrugsSourceFile previousDrugs = previous.getSourceFile(sourceFile);
+    HCDrugsSourceFile nextDrugs = next.getSourceFile(sourceFile);
+
+    ImmutableSet.Builder<VariableEntity> changed = ImmutableSet.builder();
+    changed.addAll(Sets.symmetricDifference(previous.getEntities(), next.getEntities()));
+    for(VariableEntity entity : Sets.intersection(previous.getEntities(), next.getEntities())) {
+      String drugCode = entity.getIdentifier();
+      if(!Objects.equal(previousDrugs.getDate(previousDrugs.ordinalOf(drugCode), column),
+          nextDrugs.getDate(nextDrugs.ordinalOf(drugCode), column))) {
+        changed.add(entity);
       }
     }
+    return changed.build();
+  }
 
-    zsource = new File(allfiles);
+  /**
+   * Release the source files retained in the memory cache and close allfiles.zip, when the table is disposed.
+   */
+  void close() {
+    HCDrugsRelease current = releases.peek();
+    if(current != null) {
+      current.close();
+    }
   }
 
   public File getFileEntry(String fileName) {
-    if(zsource == null) {
-      try {
-        downloadLatestAllFiles();
-      } catch(IOException e) {
-        throw new MagmaRuntimeException("Unable to download Health Canada Drugs from: " + ALL_FILES_ZIP_URL, e);
-      }
-    }
-    return new File(zsource, fileName);
+    return getRelease().getFileEntry(fileName);
   }
 
-  CSVReader getEntryReader(String fileName) {
-    try {
-      return new CSVReader(new InputStreamReader(new FileInputStream(getFileEntry(fileName)), WESTERN_EUROPE));
-    } catch(FileNotFoundException e) {
-      throw new MagmaRuntimeException("Unable to read Health Canada Drug file: " + fileName, e);
+  /**
+   * Get the drugs for Humans of the current release, the drug file being loaded in memory if not already done.
+   *
+   * @return
+   */
+  Set<VariableEntity> getEntities() {
+    return getRelease().getEntities();
+  }
+
+  /**
+   * Get the lines of a source file of the current release by drug code, loaded in memory if not already done.
+   *
+   * @param sourceFile
+   * @return
+   */
+  HCDrugsSourceFile getSourceFile(String sourceFile) {
+    return getRelease().getSourceFile(sourceFile);
+  }
+
+  /**
+   * Normalize the values of a line in place, values repeated in the source file sharing a same instance.
+   *
+   * @param line
+   * @param strings
+   * @return
+   */
+  private static String[] normalize(@NotNull String[] line, Interner<String> strings) {
+    for(int i = 0; i < line.length; i++) {
+      line[i] = strings.intern(normalize(line[i]));
     }
+    return line;
   }
 
-  String[] normalize(@NotNull String... lines) {
-    String[] normalized = new String[lines.length];
-    for(int i = 0; i < lines.length; i++) {
-      normalized[i] = normalize(lines[i]);
+  /**
+   * Trim the value and collapse its runs of whitespaces into a single space.
+   *
+   * @param str
+   * @return the same instance if already normalized
+   */
+  static String normalize(String str) {
+    int start = 0;
+    int end = str.length();
+    while(start < end && str.charAt(start) <= ' ') {
+      start++;
     }
-    return normalized;
+    while(end > start && str.charAt(end - 1) <= ' ') {
+      end--;
+    }
+
+    int run = start;
+    while(run < end - 1 && !(isWhitespace(str.charAt(run)) && isWhitespace(str.charAt(run + 1)))) {
+      run++;
+    }
+    if(run >= end - 1) {
+      return start == 0 && end == str.length() ? str : str.substring(start, end);
+    }
+
+    StringBuilder normalized = new StringBuilder(end - start);
+    normalized.append(str, start, run);
+    int i = run;
+    while(i < end) {
+      char c = str.charAt(i);
+      if(isWhitespace(c) && isWhitespace(str.charAt(i + 1))) {
+        normalized.append(' ');
+        while(isWhitespace(str.charAt(i))) {
+          i++;
+        }
+      } else {
+        normalized.append(c);
+        i++;
+      }
+    }
+    return normalized.toString();
   }
 
-  private String normalize(String str) {
-    return str.trim().replaceAll("\\s{2,}", " ");
+  /**
+   * Same whitespaces as in the \s regular expression class.
+   *
+   * @param c
+   * @return
+   */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
   }
 
-  class HCDrugsValueSet implements ValueSet {
+  HCDrugsSourceFile newSourceFile(String sourceFile, Map<String, List<String[]>> lines) {
+    return new HCDrugsSourceFile(sourceFile, lines, getColumns(sourceFile, CATEGORICAL), getColumns(sourceFile, DATE),
+        getColumns(sourceFile, INDEXED));
+  }
 
-    private final VariableEntity entity;
+  HCDrugsSourceFile newSourceFile(StringTable table) {
+    return new HCDrugsSourceFile(table, getColumns(table.getName(), CATEGORICAL), getColumns(table.getName(), DATE),
+        getColumns(table.getName(), INDEXED));
+  }
 
-    private HCDrugsValueSet(VariableEntity entity) {
-      this.entity = entity;
+  /**
+   * Find the drugs having a value of an indexed variable, its source file being loaded in memory if not already done.
+   * Repeatable variables match if any of their values does.
+   *
+   * @param variableName one of {@link #INDEXED_VARIABLES}
+   * @param value compared ignoring case and runs of whitespaces
+   * @return drugs for Humans
+   */
+  public Set<VariableEntity> findEntities(String variableName, String value) {
+    if(!INDEXED_VARIABLES.contains(variableName)) {
+      throw new IllegalArgumentException("Drugs are not indexed by variable: " + variableName);
+    }
+    Variable variable = getVariable(variableName);
+    HCDrugsSourceFile sourceFile = getSourceFile(variable.getAttributeStringValue("file"));
+    int column = Integer.parseInt(variable.getAttributeStringValue("column"));
+    if(!sourceFile.isIndexedColumn(column)) return ImmutableSet.of();
+
+    ImmutableSet.Builder<VariableEntity> builder = ImmutableSet.builder();
+    for(String drugCode : sourceFile.findDrugCodes(column, value)) {
+      builder.add(new VariableEntityBean(DRUG_ENTITY_TYPE, drugCode));
     }
+    return builder.build();
+  }
 
-    Value getValue(Variable variable) {
-      String sourceFile = variable.getAttributeStringValue("file");
-      int column = Integer.parseInt(variable.getAttributeStringValue("column"));
+  /**
+   * Get the indexes of the columns of a source file which variables match the predicate.
+   *
+   * @param sourceFile
+   * @param predicate
+   * @return
+   */
+  private Set<Integer> getColumns(String sourceFile, Predicate<Variable> predicate) {
+    ImmutableSet.Builder<Integer> columns = ImmutableSet.builder();
+    for(Variable variable : getVariables()) {
+      if(predicate.apply(variable) && sourceFile.equals(variable.getAttributeStringValue("file"))) {
+        columns.add(Integer.parseInt(variable.getAttributeStringValue("column")));
+      }
+    }
+    return columns.build();
+  }
 
-      String[] valueSet = getValueSet(sourceFile);
-      if(valueSet == null) {
-        return variable.isRepeatable() ? variable.getValueType().nullSequence() : variable.getValueType().nullValue();
+  /**
+   * Read the lines of a source file by drug code, in the order of the file.
+   *
+   * @param reader
+   * @param strings
+   * @return
+   * @throws IOException
+   */
+  static Map<String, List<String[]>> readSourceFile(CSVReader reader, Interner<String> strings) throws IOException {
+    Map<String, List<String[]>> lines = Maps.newLinkedHashMap();
+    String[] nextLine;
+    while((nextLine = reader.readNext()) != null) {
+      nextLine = normalize(nextLine, strings);
+      List<String[]> drugLines = lines.get(nextLine[0]);
+      if(drugLines == null) {
+        drugLines = Lists.newArrayListWithCapacity(1);
+        lines.put(nextLine[0], drugLines);
       }
+      drugLines.add(nextLine);
+    }
+    return lines;
+  }
 
+  /**
+   * Get the value of the variable from the lines of a drug in its source file: a repeatable variable has one value per
+   * line, otherwise the value is read from the first line.
+   *
+   * @param variable
+   * @param sourceFile
+   * @param drug ordinal of the drug in the source file, -1 if it has no line
+   * @param column
+   * @return
+   */
+  Value getValue(Variable variable, HCDrugsSourceFile sourceFile, int drug, int column) {
+    if(drug == -1) {
+      return variable.isRepeatable() ? variable.getValueType().nullSequence() : variable.getValueType().nullValue();
+    }
+
+    if(sourceFile.isDateColumn(column)) {
       return variable.isRepeatable()
-          ? getValueSequence(variable.getValueType(), valueSet[column])
-          : getValue(variable.getValueType(), valueSet[column]);
+          ? getDateSequence(sourceFile.getDates(drug, column))
+          : getDateValue(sourceFile.getDate(drug, column));
     }
 
-    /**
-     * Load the data in memory if not already done.
-     *
-     * @param sourceFile
-     * @return
-     */
-    private String[] getValueSet(String sourceFile) {
-      Map<String, String[]> sourceValueSets = valueSets.get(sourceFile);
-      try {
-        if(sourceValueSets == null) {
-          sourceValueSets = Maps.newHashMap();
-          valueSets.put(sourceFile, sourceValueSets);
-          CSVReader reader = getEntryReader(sourceFile);
-          String[] nextLine;
-          while((nextLine = reader.readNext()) != null) {
-            nextLine = normalize(nextLine);
-            VariableEntity nextEntity = new VariableEntityBean(DRUG_ENTITY_TYPE, nextLine[0]);
-            if(getVariableEntityProvider().getVariableEntities().contains(nextEntity)) {
-              if(sourceValueSets.containsKey(nextLine[0])) {
-                // merge lines
-                sourceValueSets.put(nextLine[0], merge(sourceValueSets.get(nextLine[0]), nextLine));
-              } else {
-                sourceValueSets.put(nextLine[0], nextLine);
-              }
-            }
-          }
-          reader.close();
-        }
-      } catch(IOException e) {
-        throw new MagmaRuntimeException("Unable to read source file: " + sourceFile, e);
-      }
+    return variable.isRepeatable()
+        ? getValueSequence(variable.getValueType(), sourceFile.getValues(drug, column))
+        : getValue(variable.getValueType(), sourceFile.getValue(drug, column));
+  }
+
+  private Value getValue(ValueType type, @Nullable String value) {
+    return value == null || value.isEmpty() ? type.nullValue() : type.valueOf(value);
+  }
 
-      return sourceValueSets.get(entity.getIdentifier());
+  static Value getDateValue(@Nullable Date date) {
+    return date == null ? DateType.get().nullValue() : DateType.get().valueOf(date);
+  }
+
+  private Value getDateSequence(List<Date> dates) {
+    Collection<Value> values = new ArrayList<>(dates.size());
+    for(Date date : dates) {
+      values.add(getDateValue(date));
     }
+    return DateType.get().sequenceOf(values);
+  }
 
-    /**
-     * Handle date format and deparse lines that were abusively merged.
-     *
-     * @param type
-     * @param value
-     * @return
-     */
-    private Value getValue(ValueType type, String value) {
-      if(value == null || value.isEmpty()) return type.nullValue();
-
-      if(type.equals(DateType.get())) {
-        try {
-          return DateType.get().valueOf(dateFormat.parse(value));
-        } catch(ParseException e) {
-          log.warn("ParseException", e);
-          return DateType.get().nullValue();
-        }
+  /**
+   * Make a sequence of the values of the lines of a drug.
+   *
+   * @param type
+   * @param lines
+   * @return
+   */
+  private Value getValueSequence(ValueType type, List<String> lines) {
+    Collection<Value> values = new ArrayList<>(lines.size());
+    for(String value : lines) {
+      values.add(getValue(type, value));
+    }
+    return type.sequenceOf(values);
+  }
 
-      } else {
-        // case of abusive merging of lines
-        if(value.indexOf('|') != -1) {
-          String[] values = value.split("\\|");
-          return values.length > 0 ? getValue(type, values[0]) : type.nullValue();
-        }
-        return type.valueOf(value);
-      }
+  /**
+   * The value set of a drug, resolved once to the ordinal of the drug in its release: values are read by index from the
+   * source files, which are resolved once when first read. Moved from drug to drug when used as a cursor.
+   */
+  class HCDrugsValueSet implements ValueSet {
+
+    // read until it is retired
+    private final HCDrugsRelease release;
+
+    // source files resolved once when first read and held whatever the memory cache evicts, by index in SOURCE_FILES
+    private final HCDrugsSourceFile[] sourceFiles = new HCDrugsSourceFile[SOURCE_FILES.size()];
 
+    // drug ordinals in the source files held, by index in SOURCE_FILES
+    private final int[][] drugOrdinals = new int[SOURCE_FILES.size()][];
+
+    // ordinal of the drug in the release, -1 if it is not one of its drugs
+    private int drug;
+
+    // made when first read by a cursor
+    @Nullable
+    private VariableEntity entity;
+
+    private HCDrugsValueSet(HCDrugsRelease release, VariableEntity entity) {
+      this.release = release;
+      drug = release.getEntities().ordinalOf(entity);
+      this.entity = entity;
     }
 
     /**
-     * Deparse multiple values resulting from the merge.
+     * A cursor on the drugs of a release, before its first drug.
      *
-     * @param type
-     * @param value
-     * @return
+     * @param release
      */
-    private Value getValueSequence(ValueType type, String value) {
-      Collection<Value> values = new ArrayList<>();
-      for(String val : value.split("\\|")) {
-        values.add(getValue(type, val));
-      }
-      return type.sequenceOf(values);
+    private HCDrugsValueSet(HCDrugsRelease release) {
+      this.release = release;
+      drug = -1;
+    }
+
+    private HCDrugsValueSet moveTo(int drug) {
+      this.drug = drug;
+      entity = null;
+      return this;
     }
 
     /**
-     * When there are multiple values, it is on multiple lines (therefore some data are abusively repeated).
-     *
-     * @param previousLine
-     * @param nextLine
+     * @param variable
+     * @param sourceFile index in {@link #SOURCE_FILES}
+     * @param column
      * @return
      */
-    private String[] merge(String[] previousLine, String... nextLine) {
-      for(int i = 0; i < nextLine.length; i++) {
-        previousLine[i] = previousLine[i] + "|" + nextLine[i];
+    Value getValue(Variable variable, int sourceFile, int column) {
+      if(sourceFiles[sourceFile] == null) {
+        sourceFiles[sourceFile] = release.getSourceFile(SOURCE_FILES.get(sourceFile));
+        drugOrdinals[sourceFile] = sourceFiles[sourceFile].getDrugOrdinals(release.getEntities());
       }
-      return previousLine;
+      return HCDrugsValueTable.this
+          .getValue(variable, sourceFiles[sourceFile], drug == -1 ? -1 : drugOrdinals[sourceFile][drug], column);
     }
 
     @Override
@@ -278,35 +617,15 @@ public class HCDrugsValueTable extends AbstractValueTable {
 
     @Override
     public VariableEntity getVariableEntity() {
+      if(entity == null) {
+        entity = release.getEntities().get(drug);
+      }
       return entity;
     }
 
     @Override
     public Timestamps getTimestamps() {
-      return new Timestamps() {
-        @Nonnull
-        @Override
-        public Value getLastUpdate() {
-          Value updated = getValue(getVariable("LAST_UPDATE_DATE"));
-          if(updated.isNull()) return HCDrugsValueTable.this.getTimestamps().getLastUpdate();
-          return updated;
-        }
-
-        @Nonnull
-        @Override
-        public Value getCreated() {
-          Value created = getLastUpdate();
-          Value history = getValue(getVariable("HISTORY_DATE"));
-          if(history.isNull()) return created;
-
-          for(Value val : history.asSequence().getValues()) {
-            if(((MagmaDate) val.getValue()).asDate().before(((MagmaDate) created.getValue()).asDate())) {
-              created = val;
-            }
-          }
-          return created;
-        }
-      };
+      return release.getValueSetTimestamps(drug);
     }
   }
 }
@@ -1,5 +1,8 @@
 package org.obiba.magma.datasource.healthcanada;
 
+import java.util.List;
+import java.util.SortedSet;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -7,15 +10,32 @@ import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueType;
 import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.VectorSource;
 
-class HCDrugsVariableValueSource implements VariableValueSource {
+import com.google.common.collect.Lists;
+
+class HCDrugsVariableValueSource implements VariableValueSource, VectorSource {
+
+  private final HCDrugsValueTable table;
 
   private final Variable variable;
 
-  HCDrugsVariableValueSource(Variable.Builder builder) {
+  // resolved once, instead of reading the variable's file and column attributes for each value
+  private final String sourceFile;
+
+  // index of the source file in SOURCE_FILES
+  private final int sourceFileIndex;
+
+  private final int column;
+
+  HCDrugsVariableValueSource(HCDrugsValueTable table, Variable.Builder builder, String sourceFile, int column) {
+    this.table = table;
     variable = builder.build();
+    this.sourceFile = sourceFile;
+    sourceFileIndex = HCDrugsValueTable.SOURCE_FILES.indexOf(sourceFile);
+    this.column = column;
   }
 
   @Override
@@ -37,17 +57,34 @@ class HCDrugsVariableValueSource implements VariableValueSource {
   @Nonnull
   @Override
   public Value getValue(ValueSet valueSet) {
-    return ((HCDrugsValueTable.HCDrugsValueSet) valueSet).getValue(variable);
+    return ((HCDrugsValueTable.HCDrugsValueSet) valueSet).getValue(variable, sourceFileIndex, column);
   }
 
   @Override
   public boolean supportVectorSource() {
-    return false;
+    return true;
   }
 
   @Nullable
   @Override
   public VectorSource asVectorSource() {
-    return null;
+    return this;
+  }
+
+  /**
+   * Read the values of all the requested drugs from the source file lines, loaded once.
+   *
+   * @param entities
+   * @return
+   */
+  @Override
+  public Iterable<Value> getValues(SortedSet<VariableEntity> entities) {
+    HCDrugsSourceFile lines = table.getSourceFile(sourceFile);
+
+    List<Value> values = Lists.newArrayListWithCapacity(entities.size());
+    for(VariableEntity entity : entities) {
+      values.add(table.getValue(variable, lines, lines.ordinalOf(entity.getIdentifier()), column));
+    }
+    return values;
   }
 }
@@ -17,8 +17,14 @@ import com.google.common.collect.ImmutableSet;
 @SuppressWarnings("MagicNumber")
 public class HCDrugsVariableValueSourceFactory implements VariableValueSourceFactory {
 
+  private final HCDrugsValueTable table;
+
   private ImmutableSet.Builder<VariableValueSource> valueSourceBuilder;
 
+  public HCDrugsVariableValueSourceFactory(HCDrugsValueTable table) {
+    this.table = table;
+  }
+
   @Override
   public Set<VariableValueSource> createSources() {
     valueSourceBuilder = ImmutableSet.builder();
@@ -227,8 +233,9 @@ public class HCDrugsVariableValueSourceFactory implements VariableValueSourceFac
   }
 
   private VariableValueSource newVariableValueSource(Variable.Builder variableBuilder, String sourceFile, int column) {
-    return new HCDrugsVariableValueSource(
-        variableBuilder.addAttribute("file", sourceFile).addAttribute("column", Integer.toString(column)));
+    return new HCDrugsVariableValueSource(table,
+        variableBuilder.addAttribute("file", sourceFile).addAttribute("column", Integer.toString(column)), sourceFile,
+        column);
   }
 
   private Variable.Builder newVariable(String name) {
@@ -69,4 +69,41 @@ public class HCDatasourceTest {
     }
   }
 
+  @Test
+  public void findDrugs() {
+    HCDatasource ds = new HCDatasource("baz");
+    Initialisables.initialise(ds);
+    HCDrugsValueTable drugs = (HCDrugsValueTable) ds.getValueTable("Drugs");
+
+    Set<VariableEntity> found = drugs.findEntities("INGREDIENT", "acetaminophen");
+    assertThat(found).isNotEmpty();
+    Variable ingredient = drugs.getVariable("INGREDIENT");
+    for(VariableEntity entity : found) {
+      assertThat(drugs.getValue(ingredient, drugs.getValueSet(entity)).toString()).contains("ACETAMINOPHEN");
+    }
+
+    VariableEntity drug = found.iterator().next();
+    String din = drugs.getValue(drugs.getVariable("DRUG_IDENTIFICATION_NUMBER"), drugs.getValueSet(drug)).toString();
+    assertThat(drugs.findEntities("DRUG_IDENTIFICATION_NUMBER", din)).contains(drug);
+  }
+
+  @Test
+  public void scanValueSets() {
+    HCDatasource ds = new HCDatasource("qux");
+    Initialisables.initialise(ds);
+    HCDrugsValueTable drugs = (HCDrugsValueTable) ds.getValueTable("Drugs");
+
+    int count = 0;
+    for(ValueSet valueSet : drugs.scanValueSets()) {
+      if(count++ % 1000 == 0) {
+        ValueSet expected = drugs.getValueSet(valueSet.getVariableEntity());
+        for(Variable variable : drugs.getVariables()) {
+          assertThat(drugs.getValue(variable, valueSet)).isEqualTo(drugs.getValue(variable, expected));
+        }
+        assertThat(valueSet.getTimestamps().getCreated()).isEqualTo(expected.getTimestamps().getCreated());
+      }
+    }
+    assertThat(count).isEqualTo(drugs.getVariableEntities().size());
+  }
+
 }
@@ -0,0 +1,157 @@
+package org.obiba.magma.datasource.healthcanada;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MemoryCache;
+import org.obiba.magma.datasource.commons.SnapshotFile;
+import org.obiba.magma.datasource.commons.StringTable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class HCDrugsReleaseTest {
+
+  private File directory;
+
+  private byte[] allFiles;
+
+  private MemoryCache memoryCache;
+
+  private HCDrugsValueTable table;
+
+  @Before
+  public void before() throws IOException {
+    new MagmaEngine();
+    directory = Files.createTempDir();
+    allFiles = HCDrugsValueTableTest.writeAllFilesZip(ImmutableMap.of("1", "01-JAN-2012", "2", "01-FEB-2012"));
+    memoryCache = new MemoryCache();
+    table = new HCDrugsValueTable(mock(Datasource.class), false, new DownloadCache(directory, 0), memoryCache,
+        "http://localhost/allfiles.zip");
+    table.initialise();
+  }
+
+  @After
+  public void after() throws IOException {
+    FileUtils.deleteDirectory(directory);
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void test_all_files_are_parsed_in_one_pass() throws IOException {
+    HCDrugsRelease.AllFilesParser parser = new HCDrugsRelease.AllFilesParser();
+    parser.handle(new ByteArrayInputStream(allFiles));
+    assertThat(parser.isParsed()).isTrue();
+    for(String sourceFile : HCDrugsValueTable.SOURCE_FILES) {
+      assertThat(parser.getLines(sourceFile)).isNotNull();
+    }
+
+    HCDrugsRelease streamed = newRelease("streamed");
+    streamed.loadStreamedSourceFiles(parser);
+    HCDrugsRelease lazy = newRelease("lazy");
+    for(String sourceFile : HCDrugsValueTable.SOURCE_FILES) {
+      assertThat(memoryCache.contains(streamed, sourceFile)).isTrue();
+      assertSameLines(streamed.getSourceFile(sourceFile), lazy.getSourceFile(sourceFile));
+    }
+    assertThat(streamed.getEntities()).isEqualTo(lazy.getEntities());
+  }
+
+  @Test
+  public void test_all_files_are_loaded_at_once() throws IOException {
+    HCDrugsRelease eager = newRelease("eager");
+    eager.loadAllSourceFiles();
+    HCDrugsRelease lazy = newRelease("lazy");
+    for(String sourceFile : HCDrugsValueTable.SOURCE_FILES) {
+      assertThat(memoryCache.contains(eager, sourceFile)).isTrue();
+      assertSameLines(eager.getSourceFile(sourceFile), lazy.getSourceFile(sourceFile));
+    }
+    assertThat(eager.getEntities()).hasSize(2);
+    assertThat(eager.getEntities()).isEqualTo(lazy.getEntities());
+  }
+
+  @Test
+  public void test_source_files_are_loaded_again_from_their_snapshots() throws IOException {
+    // smaller than the source files, which are not retained
+    memoryCache = new MemoryCache(0);
+    HCDrugsRelease release = newRelease("small");
+    String sourceFile = HCDrugsValueTable.SOURCE_FILES.get(1);
+    StringTable parsed = release.getSourceFile(sourceFile).toStringTable();
+    assertThat(memoryCache.contains(release, sourceFile)).isFalse();
+
+    // saved when parsed, whatever the memory cache retains
+    SnapshotFile snapshot = release.getSnapshotFile(sourceFile);
+    StringTable saved = snapshot.read(release.getChecksum(), sourceFile);
+    assertThat(saved).isNotNull();
+    assertThat(saved.getKeys()).isEqualTo(parsed.getKeys());
+
+    // loaded again from the snapshot, not parsed again
+    String[][] columns = new String[saved.getColumnCount()][];
+    for(int i = 0; i < columns.length; i++) {
+      columns[i] = saved.getColumn(i).clone();
+    }
+    columns[columns.length - 1][0] = "from snapshot";
+    snapshot.write(release.getChecksum(), ImmutableList.of(new StringTable(sourceFile, saved.getKeys(), columns)));
+    assertThat(release.getSourceFile(sourceFile).toStringTable().getValue(0, columns.length - 1))
+        .isEqualTo("from snapshot");
+  }
+
+  @Test
+  public void test_value_set_timestamps() throws IOException {
+    allFiles = HCDrugsValueTableTest.writeAllFilesZip(ImmutableMap.of("1", "01-JAN-2012", "2", "01-FEB-2012"),
+        ImmutableMap.of("status.txt", "\"1\",\"N\",\"APPROVED\",\"15-MAR-2010\"\r\n" + //
+            "\"1\",\"Y\",\"MARKETED\",\"01-JAN-2012\"\r\n" + //
+            "\"2\",\"Y\",\"MARKETED\",\"01-MAR-2012\"\r\n"));
+    HCDrugsRelease release = newRelease("timestamps");
+
+    // created by its earliest status
+    Timestamps timestamps = release.getValueSetTimestamps(release.getEntities().ordinalOf("1"));
+    assertThat(timestamps.getCreated().toString()).isEqualTo("2010-03-15");
+    assertThat(timestamps.getLastUpdate().toString()).isEqualTo("2012-01-01");
+
+    // statuses after the last update
+    timestamps = release.getValueSetTimestamps(release.getEntities().ordinalOf("2"));
+    assertThat(timestamps.getCreated().toString()).isEqualTo("2012-02-01");
+    assertThat(timestamps.getLastUpdate().toString()).isEqualTo("2012-02-01");
+
+    // not one of the drugs of the release
+    assertThat(release.getValueSetTimestamps(-1).getLastUpdate()).isEqualTo(release.getTimestamps().getLastUpdate());
+  }
+
+  /**
+   * Make a release of its own copy of allfiles.zip, so that it is not loaded from the snapshots of another one.
+   *
+   * @param name
+   * @return
+   * @throws IOException
+   */
+  private HCDrugsRelease newRelease(String name) throws IOException {
+    File allFilesZip = new File(new File(directory, name), "allfiles.zip");
+    Files.createParentDirs(allFilesZip);
+    Files.write(allFiles, allFilesZip);
+    return new HCDrugsRelease(table, 1, allFilesZip, memoryCache);
+  }
+
+  private void assertSameLines(HCDrugsSourceFile actual, HCDrugsSourceFile expected) {
+    StringTable actualLines = actual.toStringTable();
+    StringTable expectedLines = expected.toStringTable();
+    assertThat(actualLines.getName()).isEqualTo(expectedLines.getName());
+    assertThat(actualLines.getKeys()).isEqualTo(expectedLines.getKeys());
+    assertThat(actualLines.getRowCount()).isNotZero().isEqualTo(expectedLines.getRowCount());
+    for(int row = 0; row < actualLines.getRowCount(); row++) {
+      assertThat(actualLines.getRow(row)).isEqualTo(expectedLines.getRow(row));
+    }
+  }
+}
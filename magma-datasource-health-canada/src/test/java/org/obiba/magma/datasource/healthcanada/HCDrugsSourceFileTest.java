@@ -0,0 +1,109 @@
+package org.obiba.magma.datasource.healthcanada;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.datasource.commons.SnapshotFile;
+import org.obiba.magma.datasource.commons.StringTable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class HCDrugsSourceFileTest {
+
+  private static final int STATUS_COLUMN = 2;
+
+  private static final int HISTORY_DATE_COLUMN = 3;
+
+  private static final Set<Integer> DATE_COLUMNS = ImmutableSet.of(HISTORY_DATE_COLUMN);
+
+  private File directory;
+
+  @Before
+  public void before() {
+    directory = Files.createTempDir();
+  }
+
+  @After
+  public void after() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void test_dates_are_parsed() {
+    HCDrugsSourceFile statuses = newStatuses();
+    assertThat(statuses.isDateColumn(HISTORY_DATE_COLUMN)).isTrue();
+    assertThat(statuses.isDateColumn(STATUS_COLUMN)).isFalse();
+
+    assertThat(statuses.getDate(statuses.ordinalOf("1"), HISTORY_DATE_COLUMN))
+        .isEqualTo(date(2010, Calendar.MARCH, 15));
+    // invalid or missing dates are null
+    assertThat(statuses.getDates(statuses.ordinalOf("1"), HISTORY_DATE_COLUMN))
+        .containsExactly(date(2010, Calendar.MARCH, 15), date(2012, Calendar.JANUARY, 1), null, null);
+    assertThat(statuses.getDate(statuses.ordinalOf("2"), HISTORY_DATE_COLUMN)).isNull();
+  }
+
+  @Test
+  public void test_dates_of_missing_drugs_or_columns() {
+    HCDrugsSourceFile statuses = newStatuses();
+    assertThat(statuses.getDate(-1, HISTORY_DATE_COLUMN)).isNull();
+    assertThat(statuses.getDates(-1, HISTORY_DATE_COLUMN)).isEmpty();
+    // not a date column
+    assertThat(statuses.getDate(0, STATUS_COLUMN)).isNull();
+    assertThat(statuses.getDates(0, STATUS_COLUMN)).isEmpty();
+    // beyond the columns of the file
+    assertThat(statuses.getDate(0, 10)).isNull();
+    assertThat(statuses.getDates(0, 10)).isEmpty();
+  }
+
+  @Test
+  public void test_parsed_values_round_trip_through_snapshot() throws IOException {
+    HCDrugsSourceFile statuses = newStatuses();
+    SnapshotFile snapshot = new SnapshotFile(new File(directory, "status.txt.snapshot"), "test");
+    snapshot.write(1, ImmutableList.of(statuses.toStringTable()));
+    StringTable saved = snapshot.read(1, "status.txt");
+    assertThat(saved).isNotNull();
+
+    HCDrugsSourceFile loaded = new HCDrugsSourceFile(saved, ImmutableSet.of(STATUS_COLUMN), DATE_COLUMNS,
+        ImmutableSet.<Integer>of());
+    assertThat(loaded.size()).isEqualTo(statuses.size());
+    for(String drugCode : ImmutableList.of("1", "2")) {
+      int drug = loaded.ordinalOf(drugCode);
+      assertThat(drug).isEqualTo(statuses.ordinalOf(drugCode));
+      for(int column = 0; column <= HISTORY_DATE_COLUMN; column++) {
+        assertThat(loaded.getValues(drug, column)).isEqualTo(statuses.getValues(drug, column));
+      }
+      assertThat(loaded.getDates(drug, HISTORY_DATE_COLUMN)).isEqualTo(statuses.getDates(drug, HISTORY_DATE_COLUMN));
+    }
+  }
+
+  private HCDrugsSourceFile newStatuses() {
+    Map<String, List<String[]>> lines = ImmutableMap.<String, List<String[]>>of( //
+        "1", ImmutableList.of( //
+        new String[] { "1", "N", "APPROVED", "15-MAR-2010" }, //
+        new String[] { "1", "Y", "MARKETED", "01-JAN-2012" }, //
+        new String[] { "1", "N", "DORMANT", "not a date" }, //
+        new String[] { "1", "N", "CANCELLED", "" }), //
+        "2", ImmutableList.<String[]>of(new String[] { "2", "Y", "MARKETED" }));
+    return new HCDrugsSourceFile("status.txt", lines, ImmutableSet.of(STATUS_COLUMN), DATE_COLUMNS,
+        ImmutableSet.<Integer>of());
+  }
+
+  private static Date date(int year, int month, int day) {
+    return new GregorianCalendar(year, month, day).getTime();
+  }
+}
@@ -0,0 +1,391 @@
+package org.obiba.magma.datasource.healthcanada;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.datasource.commons.DownloadCache;
+import org.obiba.magma.datasource.commons.MemoryCache;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+
+@SuppressWarnings("restriction")
+public class HCDrugsValueTableTest {
+
+  private static final Map<String, String> RELEASE_1 = ImmutableMap.of( //
+      "1", "01-JAN-2012", //
+      "2", "01-JAN-2012", //
+      "5", "01-JAN-2012");
+
+  private static final Map<String, String> RELEASE_2 = ImmutableMap.of( //
+      "1", "01-JAN-2012", //
+      "2", "01-FEB-2012", //
+      "4", "01-FEB-2012");
+
+  // several lines per drug, values with a '|' and whitespaces, and a line of the veterinary drug
+  private static final String INGREDIENTS = "\"1\",\"101\",\"ACETAMINOPHEN\"\r\n" + //
+      "\"1\",\"102\",\"CODEINE  |  PHOSPHATE\"\r\n" + //
+      "\"2\",\"101\",\"ACETAMINOPHEN\"\r\n" + //
+      "\"3\",\"104\",\"AMOXICILLIN\"\r\n" + //
+      "\"5\",\"103\",\" IBUPROFEN \"\r\n";
+
+  private HttpServer server;
+
+  private File directory;
+
+  private volatile byte[] content;
+
+  private volatile boolean failing;
+
+  private MemoryCache memoryCache;
+
+  private HCDrugsValueTable table;
+
+  @Before
+  public void before() throws IOException {
+    new MagmaEngine();
+    directory = Files.createTempDir();
+    content = writeAllFilesZip(RELEASE_1);
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/allfiles.zip", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        if(failing) {
+          exchange.sendResponseHeaders(500, -1);
+        } else {
+          // downloaded again on every refresh
+          exchange.sendResponseHeaders(200, content.length);
+          try(OutputStream output = exchange.getResponseBody()) {
+            output.write(content);
+          }
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+    memoryCache = new MemoryCache();
+    table = new HCDrugsValueTable(mock(Datasource.class), false, new DownloadCache(directory, 0), memoryCache,
+        "http://localhost:" + server.getAddress().getPort() + "/allfiles.zip");
+    table.initialise();
+  }
+
+  @After
+  public void after() throws IOException {
+    server.stop(0);
+    FileUtils.deleteDirectory(directory);
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void test_normalized_value_is_same_instance_when_unchanged() {
+    String value = "ACETAMINOPHEN 500 MG";
+    assertThat(HCDrugsValueTable.normalize(value)).isSameAs(value);
+  }
+
+  @Test
+  public void test_normalize_keeps_single_whitespace() {
+    assertThat(HCDrugsValueTable.normalize("A\tB")).isEqualTo("A\tB");
+    assertThat(HCDrugsValueTable.normalize("A B\nC")).isEqualTo("A B\nC");
+  }
+
+  @Test
+  public void test_normalize_collapses_whitespace_runs() {
+    assertThat(HCDrugsValueTable.normalize("A  B")).isEqualTo("A B");
+    assertThat(HCDrugsValueTable.normalize("A \t\r\nB\t\tC D")).isEqualTo("A B C D");
+  }
+
+  @Test
+  public void test_normalize_trims() {
+    assertThat(HCDrugsValueTable.normalize("  A B\t")).isEqualTo("A B");
+    assertThat(HCDrugsValueTable.normalize("\r\n A  B \n")).isEqualTo("A B");
+  }
+
+  @Test
+  public void test_normalize_empty_or_blank() {
+    assertThat(HCDrugsValueTable.normalize("")).isEmpty();
+    assertThat(HCDrugsValueTable.normalize(" ")).isEmpty();
+    assertThat(HCDrugsValueTable.normalize(" \t\r\n ")).isEmpty();
+  }
+
+  @Test
+  public void test_normalize_as_regular_expression() {
+    for(String value : new String[] { "", "A", " A ", "A \tB", "\tA\t", "A\u000B\u000BB", "A \f B  ", "  ", "A\t" }) {
+      assertThat(HCDrugsValueTable.normalize(value)).isEqualTo(value.trim().replaceAll("\\s{2,}", " "));
+    }
+  }
+
+  @Test
+  public void test_values_are_read_as_vector() throws IOException {
+    content = writeAllFilesZip(RELEASE_1, ImmutableMap.of("ingred.txt", INGREDIENTS));
+    // the veterinary drug and the unknown one have no values
+    SortedSet<VariableEntity> entities = Sets
+        .newTreeSet(ImmutableList.of(newDrug("1"), newDrug("2"), newDrug("3"), newDrug("9")));
+
+    List<List<String>> brands = Lists.newArrayList();
+    for(Value value : table.getVariableValueSource("BRAND_NAME").asVectorSource().getValues(entities)) {
+      brands.add(toStrings(value));
+    }
+    assertThat(brands).containsExactly(Arrays.asList("BRAND 1"), Arrays.asList("BRAND 2"),
+        Arrays.asList((String) null), Arrays.asList((String) null));
+
+    VariableValueSource codes = table.getVariableValueSource("ACTIVE_INGREDIENT_CODE");
+    List<List<String>> vector = Lists.newArrayList();
+    for(Value value : codes.asVectorSource().getValues(entities)) {
+      vector.add(toStrings(value));
+    }
+    assertThat(vector).containsExactly(Arrays.asList("101", "102"), Arrays.asList("101"),
+        Collections.<String>emptyList(), Collections.<String>emptyList());
+    // as read from the value sets
+    int i = 0;
+    for(VariableEntity entity : entities) {
+      assertThat(toStrings(codes.getValue(table.getValueSet(entity)))).isEqualTo(vector.get(i++));
+    }
+  }
+
+  @Test
+  public void test_lines_of_a_drug_are_read_as_sequence() throws IOException {
+    content = writeAllFilesZip(RELEASE_1, ImmutableMap.of("ingred.txt", INGREDIENTS));
+    VariableValueSource ingredient = table.getVariableValueSource("INGREDIENT");
+    // one value per line, a '|' in a value is not a separator
+    assertThat(toStrings(ingredient.getValue(table.getValueSet(newDrug("1")))))
+        .containsExactly("ACETAMINOPHEN", "CODEINE | PHOSPHATE");
+    assertThat(toStrings(ingredient.getValue(table.getValueSet(newDrug("2"))))).containsExactly("ACETAMINOPHEN");
+    assertThat(toStrings(ingredient.getValue(table.getValueSet(newDrug("5"))))).containsExactly("IBUPROFEN");
+    // the first line of a drug for a variable which is not repeatable
+    assertThat(toStrings(table.getVariableValueSource("BRAND_NAME").getValue(table.getValueSet(newDrug("1")))))
+        .containsExactly("BRAND 1");
+  }
+
+  @Test
+  public void test_drugs_are_found_by_indexed_variables() throws IOException {
+    content = writeAllFilesZip(RELEASE_1, ImmutableMap.of("ingred.txt", INGREDIENTS));
+    // ignoring case and runs of whitespaces, in any line of a drug
+    assertThat(table.findEntities("INGREDIENT", "acetaminophen")).containsOnly(newDrug("1"), newDrug("2"));
+    assertThat(table.findEntities("INGREDIENT", " codeine |   phosphate")).containsOnly(newDrug("1"));
+    assertThat(table.findEntities("ACTIVE_INGREDIENT_CODE", "103")).containsOnly(newDrug("5"));
+    assertThat(table.findEntities("DRUG_IDENTIFICATION_NUMBER", "00000002")).containsOnly(newDrug("2"));
+    // drugs for Humans only
+    assertThat(table.findEntities("INGREDIENT", "AMOXICILLIN")).isEmpty();
+    assertThat(table.findEntities("BRAND_NAME", "BRAND 3")).isEmpty();
+    assertThat(table.findEntities("INGREDIENT", "PARACETAMOL")).isEmpty();
+    try {
+      table.findEntities("CLASS", "Human");
+      fail("Drugs are not indexed by class");
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void test_value_sets_are_scanned() throws IOException {
+    content = writeAllFilesZip(RELEASE_1, ImmutableMap.of("ingred.txt", INGREDIENTS));
+    VariableValueSource ingredient = table.getVariableValueSource("INGREDIENT");
+    VariableValueSource lastUpdate = table.getVariableValueSource("LAST_UPDATE_DATE");
+    List<String> drugCodes = Lists.newArrayList();
+    for(ValueSet cursor : table.scanValueSets()) {
+      VariableEntity entity = cursor.getVariableEntity();
+      drugCodes.add(entity.getIdentifier());
+      // the cursor reads the values of its current drug
+      ValueSet valueSet = table.getValueSet(entity);
+      assertThat(toStrings(ingredient.getValue(cursor))).isEqualTo(toStrings(ingredient.getValue(valueSet)));
+      assertThat(lastUpdate.getValue(cursor).toString()).isEqualTo("2012-01-01");
+      assertThat(cursor.getTimestamps().getLastUpdate()).isEqualTo(valueSet.getTimestamps().getLastUpdate());
+    }
+    // the drugs for Humans, in the order of the drug file
+    assertThat(drugCodes).containsExactly("1", "2", "5");
+  }
+
+  @Test
+  public void test_refresh_of_unchanged_release() {
+    HCDrugsRelease release = table.getRelease();
+    assertThat(table.refresh()).isEmpty();
+    assertThat(table.getRelease()).isSameAs(release);
+    assertThat(release.isRetired()).isFalse();
+    assertThat(release.getAllFilesZip()).exists();
+  }
+
+  @Test
+  public void test_refresh_of_changed_release() throws IOException {
+    HCDrugsRelease release = table.getRelease();
+    ValueSet valueSet = table.getValueSet(newDrug("5"));
+    Variable lastUpdate = table.getVariable("LAST_UPDATE_DATE");
+    assertThat(table.getValue(lastUpdate, valueSet).toString()).isEqualTo("2012-01-01");
+
+    content = writeAllFilesZip(RELEASE_2);
+    Set<VariableEntity> changed = table.refresh();
+    assertThat(changed).containsOnly(newDrug("2"), newDrug("4"), newDrug("5"));
+    assertThat(table.getRelease()).isNotSameAs(release);
+    assertThat(release.isRetired()).isTrue();
+    assertThat(table.getVariableEntities()).containsOnly(newDrug("1"), newDrug("2"), newDrug("4"));
+    // the copy of the retired release is deleted
+    assertThat(release.getAllFilesZip()).doesNotExist();
+    assertThat(table.getRelease().getAllFilesZip()).exists();
+
+    // read from the release it was obtained from, including the source files it had not loaded yet
+    assertThat(table.getValue(lastUpdate, valueSet).toString()).isEqualTo("2012-01-01");
+    assertThat(table.getValue(table.getVariable("ACTIVE_INGREDIENT_CODE"), valueSet).asSequence().getValues())
+        .containsExactly(TextType.get().valueOf("ingred.txt 5"));
+    assertThat(table.getValue(lastUpdate, table.getValueSet(newDrug("2"))).toString()).isEqualTo("2012-02-01");
+  }
+
+  @Test
+  public void test_refresh_of_release_that_cannot_be_loaded() throws IOException {
+    HCDrugsRelease release = table.getRelease();
+    Variable lastUpdate = table.getVariable("LAST_UPDATE_DATE");
+    assertThat(table.getValue(lastUpdate, table.getValueSet(newDrug("2"))).toString()).isEqualTo("2012-01-01");
+
+    // only the drug file
+    content = writeZip(HCDrugsValueTable.DRUG_FILE,
+        "\"2\",\"Category\",\"Human\",\"00000002\",\"BRAND 2\",\"\",\"N\",\"\",\"1\",\"01-FEB-2012\",\"0\"\r\n");
+    try {
+      table.refresh();
+      fail("The release cannot be loaded");
+    } catch(MagmaRuntimeException e) {
+      assertThat(table.getRelease()).isSameAs(release);
+      assertThat(release.isRetired()).isFalse();
+    }
+
+    // still read from its copy once evicted
+    memoryCache.invalidateAll(release);
+    assertThat(release.getAllFilesZip()).exists();
+    assertThat(table.getValue(lastUpdate, table.getValueSet(newDrug("2"))).toString()).isEqualTo("2012-01-01");
+    assertThat(table.getValue(table.getVariable("ACTIVE_INGREDIENT_CODE"), table.getValueSet(newDrug("2")))
+        .asSequence().getValues()).containsExactly(TextType.get().valueOf("ingred.txt 2"));
+
+    content = writeAllFilesZip(RELEASE_2);
+    assertThat(table.refresh()).containsOnly(newDrug("2"), newDrug("4"), newDrug("5"));
+    assertThat(release.isRetired()).isTrue();
+  }
+
+  @Test
+  public void test_refresh_of_failed_download() {
+    HCDrugsRelease release = table.getRelease();
+
+    failing = true;
+    assertThat(table.refresh()).isEmpty();
+    assertThat(table.getRelease()).isSameAs(release);
+    assertThat(release.isRetired()).isFalse();
+    assertThat(table.getValue(table.getVariable("LAST_UPDATE_DATE"), table.getValueSet(newDrug("1"))).toString())
+        .isEqualTo("2012-01-01");
+  }
+
+  private VariableEntity newDrug(String drugCode) {
+    return new VariableEntityBean(HCDrugsValueTable.DRUG_ENTITY_TYPE, drugCode);
+  }
+
+  /**
+   * @param value
+   * @return the values of a sequence, or the value, as strings
+   */
+  private static List<String> toStrings(Value value) {
+    List<String> strings = Lists.newArrayList();
+    if(!value.isSequence()) {
+      strings.add(value.isNull() ? null : value.toString());
+    } else if(!value.isNull()) {
+      for(Value item : value.asSequence().getValues()) {
+        strings.add(item.isNull() ? null : item.toString());
+      }
+    }
+    return strings;
+  }
+
+  /**
+   * Make an allfiles.zip of drugs for Humans, plus a veterinary one, and a line per drug in the other source files.
+   *
+   * @param lastUpdates last update date by drug code
+   * @return
+   * @throws IOException
+   */
+  static byte[] writeAllFilesZip(Map<String, String> lastUpdates) throws IOException {
+    return writeAllFilesZip(lastUpdates, ImmutableMap.<String, String>of());
+  }
+
+  /**
+   * Make an allfiles.zip of drugs for Humans, plus a veterinary one, and the given lines of the other source files or,
+   * if none are given, a line per drug.
+   *
+   * @param lastUpdates last update date by drug code
+   * @param sourceFileLines CSV lines by source file name
+   * @return
+   * @throws IOException
+   */
+  static byte[] writeAllFilesZip(Map<String, String> lastUpdates, Map<String, String> sourceFileLines)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(ZipOutputStream zip = new ZipOutputStream(bytes)) {
+      for(String sourceFile : HCDrugsValueTable.SOURCE_FILES) {
+        zip.putNextEntry(new ZipEntry(sourceFile));
+        StringBuilder lines = new StringBuilder();
+        if(sourceFileLines.containsKey(sourceFile)) {
+          zip.write(sourceFileLines.get(sourceFile).getBytes(HCDrugsValueTable.WESTERN_EUROPE));
+          zip.closeEntry();
+          continue;
+        }
+        if(HCDrugsValueTable.DRUG_FILE.equals(sourceFile)) {
+          lines.append("\"3\",\"Category\",\"Veterinary\",\"00000003\",\"BRAND 3\",\"\",\"N\",\"\",\"1\",")
+              .append("\"01-JAN-2012\",\"0\"\r\n");
+        }
+        for(Map.Entry<String, String> drug : lastUpdates.entrySet()) {
+          String drugCode = drug.getKey();
+          if(HCDrugsValueTable.DRUG_FILE.equals(sourceFile)) {
+            lines.append("\"").append(drugCode).append("\",\"Category\",\"Human\",\"0000000").append(drugCode)
+                .append("\",\"BRAND ").append(drugCode).append("\",\"\",\"N\",\"\",\"1\",\"")
+                .append(drug.getValue()).append("\",\"0\"\r\n");
+          } else {
+            lines.append("\"").append(drugCode).append("\",\"").append(sourceFile).append(' ').append(drugCode)
+                .append("\"\r\n");
+          }
+        }
+        zip.write(lines.toString().getBytes(HCDrugsValueTable.WESTERN_EUROPE));
+        zip.closeEntry();
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] writeZip(String entryName, String lines) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(ZipOutputStream zip = new ZipOutputStream(bytes)) {
+      zip.putNextEntry(new ZipEntry(entryName));
+      zip.write(lines.getBytes(HCDrugsValueTable.WESTERN_EUROPE));
+      zip.closeEntry();
+    }
+    return bytes.toByteArray();
+  }
+
+}